@@ -0,0 +1,45 @@
+package ru.yandex.megamarket.benchmark;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import ru.yandex.megamarket.Application;
+import ru.yandex.megamarket.repository.SqlStatementCounter;
+import ru.yandex.megamarket.services.ShopUnitService;
+
+/**
+ * Контекст приложения на встроенной БД H2, поднимается один раз на форк
+ */
+@State(Scope.Benchmark)
+public class CatalogContext {
+
+    private ConfigurableApplicationContext context;
+    private ShopUnitService shopUnitService;
+    private SqlStatementCounter sqlStatementCounter;
+
+    @Setup(Level.Trial)
+    public void start() {
+        context = new SpringApplicationBuilder(Application.class)
+                .profiles("benchmark")
+                .run();
+        shopUnitService = context.getBean(ShopUnitService.class);
+        sqlStatementCounter = context.getBean(SqlStatementCounter.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        context.close();
+    }
+
+    public ShopUnitService getShopUnitService() {
+        return shopUnitService;
+    }
+
+    public SqlStatementCounter getSqlStatementCounter() {
+        return sqlStatementCounter;
+    }
+}
@@ -0,0 +1,90 @@
+package ru.yandex.megamarket.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.services.ShopUnitService;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Импорт, пересчет средних цен, чтение и удаление синтетических деревьев.
+ * Кроме времени операции выводится sqlPerOp - количество SQL запросов на операцию
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImportBenchmark {
+
+    private static final String UPDATE_DATE = "2022-02-01T12:00:00.000Z";
+
+    @Param({"WIDE", "DEEP", "SKEWED"})
+    private TreeShape shape;
+
+    @Param({"1000", "10000"})
+    private int offers;
+
+    private ShopUnitService shopUnitService;
+
+    /**
+     * Дерево, которое лежит в БД все время замера
+     */
+    private SyntheticTree tree;
+
+    /**
+     * Два набора цен, чтобы каждое обновление действительно меняло цену
+     */
+    private ShopUnitImportRequest[] repriceRequests;
+    private int repriceCount;
+
+    /**
+     * Дерево, которое импортируется и удаляется целиком
+     */
+    private ShopUnitImportRequest cycleRequest;
+    private String cycleRootId;
+
+    @Setup(Level.Trial)
+    public void setUp(CatalogContext catalogContext) {
+        shopUnitService = catalogContext.getShopUnitService();
+        tree = new SyntheticTree(shape, offers);
+        shopUnitService.importShopUnitItems(tree.importRequest(UPDATE_DATE));
+        repriceRequests = new ShopUnitImportRequest[]{
+                tree.repriceRequest(UPDATE_DATE), tree.repriceRequest(UPDATE_DATE)};
+
+        SyntheticTree cycleTree = new SyntheticTree(shape, offers);
+        cycleRequest = cycleTree.importRequest(UPDATE_DATE);
+        cycleRootId = cycleTree.getRootId();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        shopUnitService.deleteShopUnitById(tree.getRootId());
+    }
+
+    @Benchmark
+    public void reprice(SqlStatements sqlStatements) {
+        shopUnitService.importShopUnitItems(repriceRequests[repriceCount++ & 1]);
+        sqlStatements.add();
+        sqlStatements.finishOperation();
+    }
+
+    @Benchmark
+    public void readTree(SqlStatements sqlStatements) throws IOException {
+        shopUnitService.writeShopUnitTree(tree.getRootId(), OutputStream.nullOutputStream());
+        sqlStatements.add();
+        sqlStatements.finishOperation();
+    }
+
+    @Benchmark
+    public void importAndDelete(SqlStatements sqlStatements) {
+        shopUnitService.importShopUnitItems(cycleRequest);
+        sqlStatements.add();
+        shopUnitService.deleteShopUnitById(cycleRootId);
+        sqlStatements.add();
+        sqlStatements.finishOperation();
+    }
+}
@@ -0,0 +1,44 @@
+package ru.yandex.megamarket.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.yandex.megamarket.services.ParserService;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Разбор дат и идентификаторов из запросов
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParserServiceBenchmark {
+
+    private final ParserService parserService = new ParserService();
+
+    private String date = "2022-02-01T12:00:00.000Z";
+    private String id = "3fa85f64-5717-4562-b3fc-2c963f66a333";
+
+    @Benchmark
+    public OffsetDateTime getIsoDate() {
+        return parserService.getIsoDate(date);
+    }
+
+    /**
+     * Разбор параметра date запроса /sales: проверка формата и преобразование
+     */
+    @Benchmark
+    public OffsetDateTime salesDate() {
+        parserService.checkDateFormat(date);
+        return parserService.getIsoDate(date);
+    }
+
+    @Benchmark
+    public UUID stringToUUID() {
+        return parserService.stringToUUID(id);
+    }
+}
@@ -0,0 +1,59 @@
+package ru.yandex.megamarket.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.yandex.megamarket.services.ShopUnitService;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ответы на чтение, которые собираются в памяти целиком: /sales и страница /nodes.
+ * Кэш /sales в профиле benchmark отключен, каждый вызов идет в каталог в памяти,
+ * а с -jvmArgsAppend -Dcatalog.engine.enabled=false в БД
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReadBenchmark {
+
+    private static final String UPDATE_DATE = "2022-02-01T12:00:00.000Z";
+
+    @Param({"1000"})
+    private int offers;
+
+    private ShopUnitService shopUnitService;
+    private SyntheticTree tree;
+
+    /**
+     * Разные даты запроса, чтобы ответ не брался из кэша, даже если запись еще не вытеснена
+     */
+    private final String[] salesDates = new String[1000];
+    private int salesCount;
+
+    @Setup(Level.Trial)
+    public void setUp(CatalogContext catalogContext) {
+        shopUnitService = catalogContext.getShopUnitService();
+        tree = new SyntheticTree(TreeShape.WIDE, offers);
+        shopUnitService.importShopUnitItems(tree.importRequest(UPDATE_DATE));
+        for (int i = 0; i < salesDates.length; i++) {
+            salesDates[i] = String.format("2022-02-01T12:00:00.%03dZ", i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        shopUnitService.deleteShopUnitById(tree.getRootId());
+    }
+
+    @Benchmark
+    public Object sales() {
+        return shopUnitService.getSalesStatisticFor24Hour(salesDates[salesCount++ % salesDates.length]);
+    }
+
+    @Benchmark
+    public Object nodePage() {
+        return shopUnitService.getShopUnitPage(null, "1000", null, null);
+    }
+}
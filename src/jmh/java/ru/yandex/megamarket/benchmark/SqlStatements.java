@@ -0,0 +1,51 @@
+package ru.yandex.megamarket.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import ru.yandex.megamarket.repository.SqlStatementCounter;
+
+/**
+ * Количество SQL запросов на одну операцию бенчмарка, выводится рядом со временем операции.
+ * Счетчик потока сбрасывается в начале каждой операции сервиса, поэтому после каждого вызова сервиса
+ * бенчмарк добавляет его значение через add
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class SqlStatements {
+
+    private SqlStatementCounter sqlStatementCounter;
+    private long statements;
+    private long operations;
+
+    @Setup(Level.Trial)
+    public void setUp(CatalogContext catalogContext) {
+        sqlStatementCounter = catalogContext.getSqlStatementCounter();
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        statements = 0;
+        operations = 0;
+    }
+
+    /**
+     * Учет запросов только что завершенного вызова сервиса
+     */
+    public void add() {
+        statements += sqlStatementCounter.get();
+    }
+
+    /**
+     * Окончание операции бенчмарка, которая может состоять из нескольких вызовов сервиса
+     */
+    public void finishOperation() {
+        operations++;
+    }
+
+    public double sqlPerOp() {
+        return operations == 0 ? 0 : (double) statements / operations;
+    }
+}
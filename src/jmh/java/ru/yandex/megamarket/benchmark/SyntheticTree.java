@@ -0,0 +1,104 @@
+package ru.yandex.megamarket.benchmark;
+
+import ru.yandex.megamarket.model.ShopUnitImport;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.model.ShopUnitType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Синтетическое дерево каталога заданной формы
+ */
+public class SyntheticTree {
+
+    /**
+     * Глубина цепочки DEEP, путь из 100 UUID помещается в колонку path
+     */
+    private static final int DEPTH = 100;
+
+    /**
+     * Количество категорий SKEWED, в первую попадает 90% товаров
+     */
+    private static final int SKEWED_BRANCHES = 10;
+
+    private static final long MAX_PRICE = 100_000;
+
+    private final String rootId = UUID.randomUUID().toString();
+    private final List<ShopUnitImport> categories = new ArrayList<>();
+    private final List<ShopUnitImport> offers = new ArrayList<>();
+    private final Random random = new Random(42);
+
+    public SyntheticTree(TreeShape shape, int offerCount) {
+        categories.add(new ShopUnitImport(rootId, "root", null, ShopUnitType.CATEGORY, null));
+        switch (shape) {
+            case WIDE:
+                addOffers(rootId, offerCount);
+                break;
+            case DEEP:
+                String parentId = rootId;
+                for (int i = 1; i < DEPTH; i++) {
+                    parentId = addCategory(parentId);
+                }
+                addOffers(parentId, offerCount);
+                break;
+            case SKEWED:
+                int heavy = offerCount * 9 / 10;
+                addOffers(addCategory(rootId), heavy);
+                int rest = offerCount - heavy;
+                for (int i = 1; i < SKEWED_BRANCHES; i++) {
+                    int count = rest / (SKEWED_BRANCHES - 1) + (i <= rest % (SKEWED_BRANCHES - 1) ? 1 : 0);
+                    addOffers(addCategory(rootId), count);
+                }
+                break;
+        }
+    }
+
+    public String getRootId() {
+        return rootId;
+    }
+
+    /**
+     * Запрос на импорт всего дерева
+     * @param updateDate дата обновления
+     * @return запрос с категориями и товарами
+     */
+    public ShopUnitImportRequest importRequest(String updateDate) {
+        List<ShopUnitImport> items = new ArrayList<>(categories);
+        items.addAll(offers);
+        return new ShopUnitImportRequest(items, updateDate);
+    }
+
+    /**
+     * Запрос на обновление цен всех товаров дерева
+     * @param updateDate дата обновления
+     * @return запрос только с товарами и новыми ценами
+     */
+    public ShopUnitImportRequest repriceRequest(String updateDate) {
+        List<ShopUnitImport> items = new ArrayList<>(offers.size());
+        for (ShopUnitImport offer : offers) {
+            items.add(new ShopUnitImport(offer.getId(), offer.getName(), offer.getParentId(),
+                    ShopUnitType.OFFER, nextPrice()));
+        }
+        return new ShopUnitImportRequest(items, updateDate);
+    }
+
+    private String addCategory(String parentId) {
+        String id = UUID.randomUUID().toString();
+        categories.add(new ShopUnitImport(id, "category", parentId, ShopUnitType.CATEGORY, null));
+        return id;
+    }
+
+    private void addOffers(String parentId, int count) {
+        for (int i = 0; i < count; i++) {
+            offers.add(new ShopUnitImport(UUID.randomUUID().toString(), "offer", parentId,
+                    ShopUnitType.OFFER, nextPrice()));
+        }
+    }
+
+    private long nextPrice() {
+        return (long) (random.nextDouble() * MAX_PRICE);
+    }
+}
@@ -0,0 +1,22 @@
+package ru.yandex.megamarket.benchmark;
+
+/**
+ * Форма синтетического дерева каталога
+ */
+public enum TreeShape {
+
+    /**
+     * Одна категория, все товары лежат прямо в ней
+     */
+    WIDE,
+
+    /**
+     * Цепочка вложенных категорий, все товары в самой глубокой
+     */
+    DEEP,
+
+    /**
+     * Несколько категорий, почти все товары в одной из них
+     */
+    SKEWED
+}
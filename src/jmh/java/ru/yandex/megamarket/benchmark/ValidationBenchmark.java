@@ -0,0 +1,37 @@
+package ru.yandex.megamarket.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import ru.yandex.megamarket.model.ShopUnitImportBatch;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.services.ParserService;
+import ru.yandex.megamarket.services.ShopUnitImportValidator;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Проверка больших запросов на импорт
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ValidationBenchmark {
+
+    @Param({"1000", "10000"})
+    private int offers;
+
+    private final ShopUnitImportValidator shopUnitImportValidator = new ShopUnitImportValidator(new ParserService());
+    private ShopUnitImportRequest request;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        request = new SyntheticTree(TreeShape.SKEWED, offers).importRequest("2022-02-01T12:00:00.000Z");
+    }
+
+    @Benchmark
+    public ShopUnitImportBatch validate() {
+        return shopUnitImportValidator.validate(request);
+    }
+}
@@ -3,25 +3,33 @@ package ru.yandex.megamarket.controllers;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
-import ru.yandex.megamarket.exception.ItemNotFoundException;
-import ru.yandex.megamarket.model.ShopUnit;
+import ru.yandex.megamarket.model.ImportJob;
 import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.model.ShopUnitPage;
 import ru.yandex.megamarket.model.ShopUnitStatisticResponse;
+import ru.yandex.megamarket.services.ImportJobService;
 import ru.yandex.megamarket.services.ShopUnitService;
 
-import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 
 
 @RestController
 public class ShopUnitController {
 
     private final ShopUnitService shopUnitService;
+    private final ImportJobService importJobService;
 
     @Autowired
-    public ShopUnitController(ShopUnitService shopUnitService) {
+    public ShopUnitController(ShopUnitService shopUnitService, ImportJobService importJobService) {
         this.shopUnitService = shopUnitService;
+        this.importJobService = importJobService;
     }
 
     /**
@@ -38,6 +46,43 @@ public class ShopUnitController {
         return ResponseEntity.ok().build();
     }
 
+    /**
+     * Асинхронный импорт: запрос проверяется и ставится в очередь, ответ не ждет применения.
+     * Проверки, которым нужны данные из БД, выполняются при применении, их результат виден в состоянии задачи
+     * @param shopUnitImportRequest Запрос с данными
+     * @return ResponseEntity со статусом 202, задачей и ссылкой на ее состояние
+     */
+    @PostMapping(value = "/imports/async")
+    public ResponseEntity<ImportJob> importItemsAsync(@RequestBody ShopUnitImportRequest shopUnitImportRequest) {
+        ImportJob job = importJobService.submit(shopUnitImportRequest);
+        return ResponseEntity.accepted().location(URI.create("/imports/jobs/" + job.getId())).body(job);
+    }
+
+    /**
+     * Состояние задачи асинхронного импорта
+     * @param id идентификатор задачи
+     * @return задача
+     */
+    @GetMapping(value = "/imports/jobs/{id}")
+    public ImportJob getImportJob(@PathVariable String id) {
+        return importJobService.getJob(id);
+    }
+
+    /**
+     * Потоковый импорт большого каталога в формате NDJSON: по одному элементу ShopUnitImport в строке.
+     * Родительская категория должна идти в потоке раньше своих детей.
+     * Проверки те же, что у /imports, но дубликаты id ищутся только в пределах порции
+     * @param updateDate время обновления всех элементов потока
+     * @param request запрос, тело которого читается потоком
+     * @return ResponseEntity со статусом ОК
+     */
+    @PostMapping(value = "/imports/bulk", consumes = "application/x-ndjson")
+    public ResponseEntity<?> importItemsStream(@RequestParam(name = "updateDate") String updateDate,
+                                               HttpServletRequest request) throws IOException {
+        shopUnitService.importShopUnitStream(request.getInputStream(), updateDate);
+        return ResponseEntity.ok().build();
+    }
+
     /**
      * Удаление товара или категории из базы
      * @param id идентификатор товара или категории
@@ -50,14 +95,16 @@ public class ShopUnitController {
     }
 
     /**
-     * Вывод информации по товару или категории
+     * Вывод информации по товару или категории.
+     * Дерево дочерних элементов пишется в ответ потоком
      * @param id идентификатор товара или категории
-     * @return ResponseEntity со статусом ОК
+     * @param response ответ, в который пишется JSON
      */
     @GetMapping(value = "nodes/{id}")
-    public ResponseEntity<?> getShopUnit(@PathVariable("id") String id) {
-        ShopUnit shopUnit = shopUnitService.getShopUnitById(id).orElseThrow(ItemNotFoundException::new);
-        return new ResponseEntity<>(shopUnit, HttpStatus.OK);
+    public void getShopUnit(@PathVariable("id") String id, HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        shopUnitService.writeShopUnitTree(id, response.getOutputStream());
     }
 
     /**
@@ -72,11 +119,50 @@ public class ShopUnitController {
     }
 
     /**
-     * Вывод списка ShopUnit
-     * @return список ShopUnit
+     * История обновлений товара или категории за полуинтервал [dateStart, dateEnd)
+     * @param id идентификатор товара или категории
+     * @param dateStart начало интервала включительно
+     * @param dateEnd конец интервала не включительно
+     * @param response ответ, в который пишется JSON
+     */
+    @GetMapping(value = "node/{id}/statistic")
+    public void getStatistic(@PathVariable("id") String id,
+                             @RequestParam(name = "dateStart", required = false) String dateStart,
+                             @RequestParam(name = "dateEnd", required = false) String dateEnd,
+                             HttpServletResponse response) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        shopUnitService.writeStatistic(id, dateStart, dateEnd, response.getOutputStream());
+    }
+
+    /**
+     * Список товаров и категорий постранично по возрастанию id, без дочерних элементов
+     * @param after id последнего элемента предыдущей страницы, для первой страницы не передается
+     * @param limit размер страницы
+     * @param type фильтр по типу OFFER или CATEGORY
+     * @param parentId фильтр по родительской категории
+     * @return страница и значение after для следующей страницы
      */
     @GetMapping(value = "/nodes")
-    public  List<ShopUnit> getAllShopUnits() {
-        return shopUnitService.getShopUnits();
+    public ShopUnitPage getShopUnitPage(@RequestParam(name = "after", required = false) String after,
+                                        @RequestParam(name = "limit", required = false) String limit,
+                                        @RequestParam(name = "type", required = false) String type,
+                                        @RequestParam(name = "parentId", required = false) String parentId) {
+        return shopUnitService.getShopUnitPage(after, limit, type, parentId);
+    }
+
+    /**
+     * Выгрузка всех товаров и категорий в NDJSON, по одному элементу в строке
+     * @param type фильтр по типу OFFER или CATEGORY
+     * @param parentId фильтр по родительской категории
+     * @param response ответ, в который пишутся строки
+     */
+    @GetMapping(value = "/nodes/export")
+    public void exportShopUnits(@RequestParam(name = "type", required = false) String type,
+                                @RequestParam(name = "parentId", required = false) String parentId,
+                                HttpServletResponse response) throws IOException {
+        response.setContentType("application/x-ndjson");
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        shopUnitService.exportShopUnits(type, parentId, response.getOutputStream());
     }
 }
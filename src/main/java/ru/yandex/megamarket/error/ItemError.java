@@ -0,0 +1,26 @@
+package ru.yandex.megamarket.error;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Ошибка проверки одного элемента импорта
+ */
+@AllArgsConstructor
+@Getter
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ItemError {
+
+    /**
+     * Позиция элемента в запросе, null для ошибок всего запроса или элементов из БД
+     */
+    Integer index;
+
+    /**
+     * id элемента в том виде, в котором он пришел
+     */
+    String id;
+
+    String message;
+}
@@ -0,0 +1,21 @@
+package ru.yandex.megamarket.error;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Getter;
+
+import java.util.List;
+
+/**
+ * Ошибка валидации со списком ошибок по элементам импорта
+ */
+@Getter
+public class ValidationError extends Error {
+
+    @JsonInclude(JsonInclude.Include.NON_EMPTY)
+    List<ItemError> items;
+
+    public ValidationError(int code, String message, List<ItemError> items) {
+        super(code, message);
+        this.items = items;
+    }
+}
@@ -0,0 +1,29 @@
+package ru.yandex.megamarket.exception;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Дерево изменилось между чтением и захватом блокировок,
+ * и изменение затрагивает незаблокированные элементы
+ */
+public class LockSetChangedException extends RuntimeException {
+
+    private static final String DESCRIPTION = "Lock set changed";
+
+    private final Set<UUID> ids;
+
+    public LockSetChangedException(Collection<UUID> ids) {
+        super(DESCRIPTION);
+        this.ids = Set.copyOf(ids);
+    }
+
+    /**
+     * Элементы, которые нужно добавить к блокировкам перед повтором
+     * @return множество id
+     */
+    public Set<UUID> getIds() {
+        return ids;
+    }
+}
@@ -1,10 +1,29 @@
 package ru.yandex.megamarket.exception;
 
+import ru.yandex.megamarket.error.ItemError;
+
+import java.util.List;
+
 public class ValidationFailedException extends RuntimeException {
 
     private static final String DESCRIPTION = "Validation Failed";
 
+    private final List<ItemError> errors;
+
     public ValidationFailedException() {
+        this(List.of());
+    }
+
+    public ValidationFailedException(List<ItemError> errors) {
         super(DESCRIPTION);
+        this.errors = List.copyOf(errors);
+    }
+
+    /**
+     * Ошибки по элементам импорта, пустой список если ошибка относится ко всему запросу
+     * @return список ошибок
+     */
+    public List<ItemError> getErrors() {
+        return errors;
     }
 }
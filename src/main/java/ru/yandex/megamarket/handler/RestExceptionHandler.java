@@ -5,6 +5,7 @@ import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestControllerAdvice;
 import ru.yandex.megamarket.error.Error;
+import ru.yandex.megamarket.error.ValidationError;
 import ru.yandex.megamarket.exception.ItemNotFoundException;
 import ru.yandex.megamarket.exception.ValidationFailedException;
 
@@ -14,12 +15,12 @@ public class RestExceptionHandler {
     /**
      * Невалидная схема документа или входные данные не верны
      * @param ex исключение ValidationFailedException
-     * @return Error код ошибки и сообщение
+     * @return Error код ошибки, сообщение и ошибки по элементам импорта
      */
     @ExceptionHandler(ValidationFailedException.class)
     @ResponseStatus(value = HttpStatus.BAD_REQUEST)
     public Error handleValidationFailed(ValidationFailedException ex) {
-        return new Error(400, ex.getMessage());
+        return new ValidationError(400, ex.getMessage(), ex.getErrors());
     }
 
     /**
@@ -0,0 +1,108 @@
+package ru.yandex.megamarket.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.sun.istack.NotNull;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+import org.springframework.data.domain.Persistable;
+import ru.yandex.megamarket.services.ParserService;
+
+import javax.persistence.*;
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * Задача асинхронного импорта. Запрос хранится в БД до применения,
+ * поэтому принятая задача не теряется при перезапуске
+ */
+@Entity
+@Table(indexes = @Index(name = "import_job_status_update_date_idx", columnList = "status, updateDate, createdAt"))
+@Getter
+@Setter
+@NoArgsConstructor
+public class ImportJob implements Persistable<UUID> {
+
+    /**
+     * Наибольшая длина описания ошибки
+     */
+    public static final int ERROR_LENGTH = 4000;
+
+    @Id
+    @Column(updatable = false, nullable = false)
+    private UUID id;
+
+    @NotNull
+    @Column(nullable = false)
+    @Enumerated(EnumType.STRING)
+    private ImportJobStatus status;
+
+    /**
+     * Время обновления из запроса, задачи применяются в порядке этого времени
+     */
+    @NotNull
+    @Column(nullable = false)
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = ParserService.FORMAT_DATE_TIME)
+    private OffsetDateTime updateDate;
+
+    /**
+     * Количество элементов в запросе
+     */
+    @Column(nullable = false)
+    private int itemCount;
+
+    /**
+     * Запрос на импорт в JSON
+     */
+    @NotNull
+    @JsonIgnore
+    @Column(nullable = false, columnDefinition = "text")
+    private String payload;
+
+    @NotNull
+    @Column(nullable = false)
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = ParserService.FORMAT_DATE_TIME)
+    private OffsetDateTime createdAt;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = ParserService.FORMAT_DATE_TIME)
+    private OffsetDateTime startedAt;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = ParserService.FORMAT_DATE_TIME)
+    private OffsetDateTime finishedAt;
+
+    /**
+     * Причина, по которой импорт не применен
+     */
+    @Column(length = ERROR_LENGTH)
+    private String error;
+
+    @Transient
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private boolean isNew;
+
+    public ImportJob(UUID id, OffsetDateTime updateDate, int itemCount, String payload, OffsetDateTime createdAt) {
+        this.id = id;
+        this.status = ImportJobStatus.QUEUED;
+        this.updateDate = updateDate;
+        this.itemCount = itemCount;
+        this.payload = payload;
+        this.createdAt = createdAt;
+        this.isNew = true;
+    }
+
+    @Override
+    @JsonIgnore
+    public boolean isNew() {
+        return isNew;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        isNew = false;
+    }
+}
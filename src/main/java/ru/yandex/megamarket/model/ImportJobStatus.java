@@ -0,0 +1,11 @@
+package ru.yandex.megamarket.model;
+
+/**
+ * Состояние задачи асинхронного импорта
+ */
+public enum ImportJobStatus {
+    QUEUED,
+    RUNNING,
+    DONE,
+    FAILED
+}
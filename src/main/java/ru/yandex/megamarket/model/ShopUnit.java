@@ -1,15 +1,19 @@
 package ru.yandex.megamarket.model;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.sun.istack.NotNull;
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
+import org.springframework.data.domain.Persistable;
 import ru.yandex.megamarket.services.ParserService;
 
 import javax.persistence.*;
 import java.time.OffsetDateTime;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 import java.util.UUID;
@@ -18,11 +22,33 @@ import java.util.UUID;
  * Объект товара или категории
  */
 @Entity
+@Table(indexes = {
+        @Index(name = "shop_unit_path_idx", columnList = "path"),
+        @Index(name = "shop_unit_type_last_price_updated_date_idx", columnList = "type, lastPriceUpdatedDate"),
+        @Index(name = "shop_unit_parent_id_id_idx", columnList = "parentId, id"),
+        @Index(name = "shop_unit_type_id_idx", columnList = "type, id")
+})
 @Getter
 @Setter
 @NoArgsConstructor
 @AllArgsConstructor
-public class ShopUnit {
+public class ShopUnit implements Persistable<UUID> {
+
+    /**
+     * Разделитель id в материализованном пути
+     */
+    public static final String PATH_SEPARATOR = "/";
+
+    /**
+     * Наибольшая глубина вложенности. Каждый уровень добавляет к пути 37 символов,
+     * а строка индекса shop_unit_path_idx ограничена 2704 байтами
+     */
+    public static final int MAX_DEPTH = 64;
+
+    /**
+     * Длина пути элемента на наибольшей глубине
+     */
+    public static final int MAX_PATH_LENGTH = MAX_DEPTH * (36 + PATH_SEPARATOR.length());
 
     @Id
     @Column(updatable = false, nullable = false)
@@ -44,9 +70,8 @@ public class ShopUnit {
     private OffsetDateTime date;
 
     /**
-     * Время последнего обновления цены
+     * Время последнего обновления цены товара. Для категорий равно null
      */
-    @NotNull
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = ParserService.FORMAT_DATE_TIME)
     private OffsetDateTime lastPriceUpdatedDate;
 
@@ -68,12 +93,92 @@ public class ShopUnit {
      */
     private Long price;
 
+    /**
+     * Сумма цен всех товаров поддерева. Для товара равна его цене.
+     */
+    @JsonIgnore
+    @Column(nullable = false)
+    private long priceSum;
+
+    /**
+     * Количество товаров в поддереве. Для товара равно 1.
+     */
+    @JsonIgnore
+    @Column(nullable = false)
+    private long offerCount;
+
+    /**
+     * Материализованный путь: id всех предков и самого элемента, каждый с разделителем в конце.
+     * Поддерево элемента - все элементы, путь которых начинается с его пути
+     */
+    @JsonIgnore
+    @Column(nullable = false, length = 4000)
+    private String path;
+
     /**
      * Список всех дочерних товаров\категорий. Для товаров поле равно null.
      */
     @OneToMany(cascade = {CascadeType.REFRESH, CascadeType.MERGE}, mappedBy = "parentId")
     private List<ShopUnit> children;
 
+    /**
+     * Признак нового элемента, которого еще нет в БД.
+     * Позволяет сохранять новые элементы без предварительного select
+     */
+    @Transient
+    @JsonIgnore
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private boolean isNew;
+
+    @Override
+    @JsonIgnore
+    public boolean isNew() {
+        return isNew;
+    }
+
+    /**
+     * Получение id всех предков элемента из материализованного пути
+     * @return список id от корневой категории до родителя
+     */
+    @JsonIgnore
+    public List<UUID> getAncestorIds() {
+        if (path == null) return new ArrayList<>();
+        List<UUID> ids = parsePath(path);
+        ids.remove(ids.size() - 1);
+        return ids;
+    }
+
+    /**
+     * Разбор материализованного пути
+     * @param path путь элемента
+     * @return список id от корневой категории до самого элемента
+     */
+    public static List<UUID> parsePath(String path) {
+        List<UUID> ids = new ArrayList<>();
+        for (String id : path.split(PATH_SEPARATOR)) {
+            ids.add(UUID.fromString(id));
+        }
+        return ids;
+    }
+
+    @PostLoad
+    @PostPersist
+    void markNotNew() {
+        isNew = false;
+    }
+
+    /**
+     * Изменение суммы и количества товаров поддерева с пересчетом средней цены
+     * @param priceSumDelta изменение суммы цен
+     * @param offerCountDelta изменение количества товаров
+     */
+    public void addToAggregate(long priceSumDelta, long offerCountDelta) {
+        priceSum += priceSumDelta;
+        offerCount += offerCountDelta;
+        price = offerCount == 0 ? null : priceSum / offerCount;
+    }
+
     // Считаем объекты одинаковыми, если у них одинаковый UUID
     @Override
     public boolean equals(Object o) {
@@ -93,6 +198,7 @@ public class ShopUnit {
 
         public Builder() {
             newShopUnit = new ShopUnit();
+            newShopUnit.isNew = true;
         }
 
         public Builder withId(UUID id){
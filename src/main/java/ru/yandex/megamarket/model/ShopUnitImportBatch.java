@@ -0,0 +1,46 @@
+package ru.yandex.megamarket.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.OffsetDateTime;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Проверенный запрос на импорт с разобранными идентификаторами и датой
+ */
+@AllArgsConstructor
+@Getter
+public class ShopUnitImportBatch {
+
+    /**
+     * Элементы импорта по id в порядке запроса
+     */
+    private final Map<UUID, ShopUnitImport> items;
+
+    /**
+     * Новые родители элементов, null для корневых
+     */
+    private final Map<UUID, UUID> parentIds;
+
+    private final OffsetDateTime updateDate;
+
+    public UUID getParentId(UUID id) {
+        return parentIds.get(id);
+    }
+
+    /**
+     * Элементы и их новые родители, которые нужно загрузить из БД
+     * @return множество id
+     */
+    public Set<UUID> getAffectedIds() {
+        Set<UUID> ids = new HashSet<>(items.keySet());
+        for (UUID parentId : parentIds.values()) {
+            if (parentId != null) ids.add(parentId);
+        }
+        return ids;
+    }
+}
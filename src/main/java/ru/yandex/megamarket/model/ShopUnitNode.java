@@ -0,0 +1,31 @@
+package ru.yandex.megamarket.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import ru.yandex.megamarket.services.ParserService;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * Товар или категория без списка дочерних элементов.
+ * Используется для построчного чтения дерева без загрузки сущностей
+ */
+@Getter
+@AllArgsConstructor
+public class ShopUnitNode {
+
+    private final UUID id;
+
+    private final String name;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = ParserService.FORMAT_DATE_TIME)
+    private final OffsetDateTime date;
+
+    private final UUID parentId;
+
+    private final ShopUnitType type;
+
+    private final Long price;
+}
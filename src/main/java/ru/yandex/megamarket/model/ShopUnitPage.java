@@ -0,0 +1,29 @@
+package ru.yandex.megamarket.model;
+
+import lombok.Getter;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Страница списка /nodes
+ */
+@Getter
+public class ShopUnitPage {
+
+    /**
+     * Элементы по возрастанию id, без дочерних элементов
+     */
+    private final List<ShopUnitNode> items;
+
+    /**
+     * Значение параметра after для следующей страницы, null на последней странице
+     */
+    private final UUID next;
+
+    public ShopUnitPage(List<ShopUnitNode> items, UUID next) {
+        this.items = Collections.unmodifiableList(items);
+        this.next = next;
+    }
+}
@@ -0,0 +1,31 @@
+package ru.yandex.megamarket.model;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import ru.yandex.megamarket.services.ParserService;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * Элемент ответа /sales и /node/{id}/statistic.
+ * Заполняется проекцией запроса без загрузки сущностей, неизменяемый, поэтому безопасно хранится в кэше
+ */
+@Getter
+@AllArgsConstructor
+public class ShopUnitStatisticItem {
+
+    private final UUID id;
+
+    private final String name;
+
+    private final UUID parentId;
+
+    private final ShopUnitType type;
+
+    private final Long price;
+
+    @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = ParserService.FORMAT_DATE_TIME)
+    private final OffsetDateTime date;
+}
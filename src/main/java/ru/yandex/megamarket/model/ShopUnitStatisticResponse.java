@@ -1,19 +1,22 @@
 package ru.yandex.megamarket.model;
 
-import lombok.AllArgsConstructor;
 import lombok.Getter;
-import lombok.NoArgsConstructor;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
-@AllArgsConstructor
-@NoArgsConstructor
+/**
+ * Ответ /sales. Неизменяемый, поэтому один экземпляр отдается из кэша всем запросам
+ */
 @Getter
 public class ShopUnitStatisticResponse {
 
     /**
      * История в произвольном порядке
      */
-    private List<ShopUnitStatisticUnit> items = new ArrayList<>();
+    private final List<ShopUnitStatisticItem> items;
+
+    public ShopUnitStatisticResponse(List<ShopUnitStatisticItem> items) {
+        this.items = Collections.unmodifiableList(items);
+    }
 }
@@ -1,8 +1,8 @@
 package ru.yandex.megamarket.model;
 
 import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.sun.istack.NotNull;
-import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.Setter;
@@ -12,14 +12,30 @@ import javax.persistence.*;
 import java.time.OffsetDateTime;
 import java.util.UUID;
 
+/**
+ * Запись истории обновлений товара или категории.
+ * Строки только добавляются, поиск идет по индексу (id, date)
+ */
 @Entity
+@Table(indexes = @Index(name = "shop_unit_statistic_unit_id_date_idx", columnList = "id, date"))
 @Getter
 @Setter
 @NoArgsConstructor
-@AllArgsConstructor
 public class ShopUnitStatisticUnit {
 
+    /**
+     * Номер записи истории. Последовательность выделяется пачками, чтобы вставка шла батчами
+     */
     @Id
+    @JsonIgnore
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "shop_unit_statistic_unit_seq")
+    @SequenceGenerator(name = "shop_unit_statistic_unit_seq", allocationSize = 100)
+    private Long historyId;
+
+    /**
+     * Идентификатор товара или категории
+     */
+    @NotNull
     @Column(updatable = false, nullable = false)
     private UUID id;
 
@@ -55,4 +71,14 @@ public class ShopUnitStatisticUnit {
     @Column(nullable = false)
     @JsonFormat(shape = JsonFormat.Shape.STRING, pattern = ParserService.FORMAT_DATE_TIME)
     private OffsetDateTime date;
+
+    public ShopUnitStatisticUnit(UUID id, String name, UUID parentId, ShopUnitType type, Long price,
+                                 OffsetDateTime date) {
+        this.id = id;
+        this.name = name;
+        this.parentId = parentId;
+        this.type = type;
+        this.price = price;
+        this.date = date;
+    }
 }
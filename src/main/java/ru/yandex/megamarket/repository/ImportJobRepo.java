@@ -0,0 +1,77 @@
+package ru.yandex.megamarket.repository;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.megamarket.model.ImportJob;
+import ru.yandex.megamarket.model.ImportJobStatus;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+@Repository
+public interface ImportJobRepo extends CrudRepository<ImportJob, UUID> {
+
+    /**
+     * Следующая задача в порядке времени обновления, при равном времени - в порядке поступления
+     * @param status состояние задачи
+     * @return задача или пусто, если очередь пуста
+     */
+    Optional<ImportJob> findFirstByStatusOrderByUpdateDateAscCreatedAtAsc(ImportJobStatus status);
+
+    /**
+     * Задачи с одинаковым временем обновления в порядке поступления, их можно применить одним импортом
+     * @param status состояние задачи
+     * @param updateDate время обновления
+     * @param pageable ограничение количества
+     * @return задачи
+     */
+    List<ImportJob> findByStatusAndUpdateDateOrderByCreatedAtAsc(ImportJobStatus status, OffsetDateTime updateDate,
+                                                                 Pageable pageable);
+
+    long countByStatus(ImportJobStatus status);
+
+    /**
+     * Захват задачи обработчиком. Задачу захватывает только тот, чей запрос первым сменил состояние
+     * @param id идентификатор задачи
+     * @param startedAt время начала применения
+     * @return 1, если задача захвачена
+     */
+    @Modifying
+    @Transactional
+    @Query("update ImportJob j set j.status = ru.yandex.megamarket.model.ImportJobStatus.RUNNING, "
+            + "j.startedAt = :startedAt where j.id = :id "
+            + "and j.status = ru.yandex.megamarket.model.ImportJobStatus.QUEUED")
+    int claim(@Param("id") UUID id, @Param("startedAt") OffsetDateTime startedAt);
+
+    /**
+     * Завершение задачи
+     * @param id идентификатор задачи
+     * @param status итоговое состояние
+     * @param finishedAt время завершения
+     * @param error причина ошибки, null при успехе
+     */
+    @Modifying
+    @Transactional
+    @Query("update ImportJob j set j.status = :status, j.finishedAt = :finishedAt, j.error = :error where j.id = :id")
+    void finish(@Param("id") UUID id, @Param("status") ImportJobStatus status,
+                @Param("finishedAt") OffsetDateTime finishedAt, @Param("error") String error);
+
+    /**
+     * Возврат в очередь задач, применение которых прервал перезапуск.
+     * Импорт идет одной транзакцией, поэтому прерванный импорт не оставил изменений,
+     * а зафиксированный, но не отмеченный завершенным, применится повторно с тем же результатом
+     * @return количество возвращенных задач
+     */
+    @Modifying
+    @Transactional
+    @Query("update ImportJob j set j.status = ru.yandex.megamarket.model.ImportJobStatus.QUEUED, j.startedAt = null "
+            + "where j.status = ru.yandex.megamarket.model.ImportJobStatus.RUNNING")
+    int requeueRunning();
+}
@@ -0,0 +1,273 @@
+package ru.yandex.megamarket.repository;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.megamarket.model.ShopUnit;
+import ru.yandex.megamarket.model.ShopUnitNode;
+import ru.yandex.megamarket.model.ShopUnitStatisticItem;
+import ru.yandex.megamarket.model.ShopUnitType;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Чтение дерева товаров/категорий и массовые обновления напрямую через JDBC, минуя контекст персистентности
+ */
+@Repository
+public class ShopUnitJdbcRepo {
+
+    private static final int FETCH_SIZE = 1000;
+
+    /**
+     * Все id в пути одной длины, поэтому сортировка по пути дает обход дерева в глубину:
+     * родитель идет перед своими детьми, а поддерево каждого элемента идет подряд
+     */
+    private static final String SELECT_SUBTREE = "select id, name, date, parent_id, type, price from shop_unit "
+            + "where path like ? order by path";
+
+    private static final String SELECT_NODES = "select id, name, date, parent_id, type, price from shop_unit where true";
+
+    /**
+     * В порядке путей дети каждой категории идут по возрастанию id, как в SELECT_SUBTREE,
+     * поэтому каталог в памяти при загрузке добавляет каждого ребенка в конец списка
+     */
+    private static final String SELECT_CATALOG = "select id, name, date, last_price_updated_date, parent_id, type, "
+            + "price, price_sum, offer_count from shop_unit order by path";
+
+    private static final String SELECT_STATISTIC = "select id, name, parent_id, type, price, date "
+            + "from shop_unit_statistic_unit where id = ?";
+
+    private static final String SELECT_SALES = "select id, name, parent_id, type, price, date from shop_unit "
+            + "where type = 'OFFER' and last_price_updated_date between ? and ?";
+
+    /**
+     * Сумма цен и количество товаров категории считаются заново по всем товарам ее поддерева
+     */
+    private static final String UPDATE_AGGREGATES = "update shop_unit c set "
+            + "price_sum = (select coalesce(sum(o.price), 0) from shop_unit o "
+            + "where o.type = 'OFFER' and o.path like concat(c.path, '%%')), "
+            + "offer_count = (select count(*) from shop_unit o "
+            + "where o.type = 'OFFER' and o.path like concat(c.path, '%%')), "
+            + "date = ? where c.id in (%s)";
+
+    private static final String UPDATE_AVERAGE_PRICE = "update shop_unit "
+            + "set price = case when offer_count = 0 then null else price_sum / offer_count end where id in (%s)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final SqlStatementCounter sqlStatementCounter;
+
+    @Autowired
+    public ShopUnitJdbcRepo(JdbcTemplate jdbcTemplate, SqlStatementCounter sqlStatementCounter) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.sqlStatementCounter = sqlStatementCounter;
+    }
+
+    /**
+     * Построчное чтение поддерева в порядке обхода в глубину.
+     * Транзакция нужна, чтобы драйвер читал строки курсором порциями по FETCH_SIZE
+     * @param path материализованный путь корня поддерева
+     * @param consumer обработчик каждого элемента
+     */
+    @Transactional(readOnly = true)
+    public void findSubtree(String path, Consumer<ShopUnitNode> consumer) {
+        sqlStatementCounter.increment();
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(SELECT_SUBTREE);
+            statement.setFetchSize(FETCH_SIZE);
+            statement.setString(1, path + "%");
+            return statement;
+        }, (RowCallbackHandler) resultSet -> consumer.accept(mapNode(resultSet)));
+    }
+
+    /**
+     * Поиск товаров, цена которых обновлялась в заданном интервале включительно,
+     * по индексу (type, last_price_updated_date). Строки сразу превращаются в элементы ответа
+     * @param startDate начало интервала
+     * @param endDate конец интервала
+     * @return список элементов для ответа
+     */
+    public List<ShopUnitStatisticItem> findSales(OffsetDateTime startDate, OffsetDateTime endDate) {
+        sqlStatementCounter.increment();
+        return jdbcTemplate.query(SELECT_SALES, (resultSet, rowNum) -> mapStatisticItem(resultSet),
+                Timestamp.from(startDate.toInstant()), Timestamp.from(endDate.toInstant()));
+    }
+
+    /**
+     * Построчное чтение истории обновлений элемента за полуинтервал [dateStart, dateEnd)
+     * одним проходом по индексу (id, date)
+     * @param id идентификатор элемента
+     * @param dateStart начало интервала включительно, null - без ограничения
+     * @param dateEnd конец интервала не включительно, null - без ограничения
+     * @param consumer обработчик каждой записи истории
+     */
+    @Transactional(readOnly = true)
+    public void findStatistic(UUID id, OffsetDateTime dateStart, OffsetDateTime dateEnd,
+                              Consumer<ShopUnitStatisticItem> consumer) {
+        StringBuilder sql = new StringBuilder(SELECT_STATISTIC);
+        List<Object> params = new ArrayList<>();
+        params.add(id);
+        if (dateStart != null) {
+            sql.append(" and date >= ?");
+            params.add(Timestamp.from(dateStart.toInstant()));
+        }
+        if (dateEnd != null) {
+            sql.append(" and date < ?");
+            params.add(Timestamp.from(dateEnd.toInstant()));
+        }
+        sql.append(" order by date");
+        sqlStatementCounter.increment();
+
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(sql.toString());
+            statement.setFetchSize(FETCH_SIZE);
+            for (int i = 0; i < params.size(); i++) {
+                statement.setObject(i + 1, params.get(i));
+            }
+            return statement;
+        }, (RowCallbackHandler) resultSet -> consumer.accept(mapStatisticItem(resultSet)));
+    }
+
+    /**
+     * Страница элементов по возрастанию id. Следующая страница начинается после последнего id предыдущей,
+     * поэтому запрос идет по индексу с нужного места, а не пропускает OFFSET строк
+     * @param after id, после которого начинается страница, null - с начала
+     * @param type фильтр по типу, null - без фильтра
+     * @param parentId фильтр по родителю, null - без фильтра
+     * @param limit размер страницы
+     * @return элементы страницы
+     */
+    public List<ShopUnitNode> findNodePage(UUID after, ShopUnitType type, UUID parentId, int limit) {
+        StringBuilder sql = new StringBuilder(SELECT_NODES);
+        List<Object> params = new ArrayList<>();
+        appendFilters(sql, params, type, parentId);
+        if (after != null) {
+            sql.append(" and id > ?");
+            params.add(after);
+        }
+        sql.append(" order by id limit ?");
+        params.add(limit);
+        sqlStatementCounter.increment();
+        return jdbcTemplate.query(sql.toString(), (resultSet, rowNum) -> mapNode(resultSet), params.toArray());
+    }
+
+    /**
+     * Построчное чтение всех элементов курсором, память не зависит от размера каталога
+     * @param type фильтр по типу, null - без фильтра
+     * @param parentId фильтр по родителю, null - без фильтра
+     * @param consumer обработчик каждого элемента
+     */
+    @Transactional(readOnly = true)
+    public void findNodes(ShopUnitType type, UUID parentId, Consumer<ShopUnitNode> consumer) {
+        StringBuilder sql = new StringBuilder(SELECT_NODES);
+        List<Object> params = new ArrayList<>();
+        appendFilters(sql, params, type, parentId);
+        sqlStatementCounter.increment();
+
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(sql.toString());
+            statement.setFetchSize(FETCH_SIZE);
+            for (int i = 0; i < params.size(); i++) {
+                statement.setObject(i + 1, params.get(i));
+            }
+            return statement;
+        }, (RowCallbackHandler) resultSet -> consumer.accept(mapNode(resultSet)));
+    }
+
+    /**
+     * Построчное чтение всего каталога курсором для загрузки в память.
+     * Элементы создаются вне контекста персистентности и не сохраняются
+     * @param consumer обработчик каждого элемента
+     */
+    @Transactional(readOnly = true)
+    public void findCatalog(Consumer<ShopUnit> consumer) {
+        sqlStatementCounter.increment();
+        jdbcTemplate.query(connection -> {
+            PreparedStatement statement = connection.prepareStatement(SELECT_CATALOG);
+            statement.setFetchSize(FETCH_SIZE);
+            return statement;
+        }, (RowCallbackHandler) resultSet -> consumer.accept(mapShopUnit(resultSet)));
+    }
+
+    private static void appendFilters(StringBuilder sql, List<Object> params, ShopUnitType type, UUID parentId) {
+        if (type != null) {
+            sql.append(" and type = ?");
+            params.add(type.name());
+        }
+        if (parentId != null) {
+            sql.append(" and parent_id = ?");
+            params.add(parentId);
+        }
+    }
+
+    /**
+     * Пересчет суммы цен, количества товаров и средней цены категорий по их поддеревьям.
+     * Выполняется в транзакции вызывающего кода
+     * @param ids идентификаторы категорий
+     * @param date новая дата обновления категорий
+     */
+    public void updateAggregates(List<UUID> ids, OffsetDateTime date) {
+        String placeholders = String.join(", ", Collections.nCopies(ids.size(), "?"));
+        List<Object> params = new ArrayList<>(ids.size() + 1);
+        params.add(Timestamp.from(date.toInstant()));
+        params.addAll(ids);
+        sqlStatementCounter.increment();
+        jdbcTemplate.update(String.format(UPDATE_AGGREGATES, placeholders), params.toArray());
+        sqlStatementCounter.increment();
+        jdbcTemplate.update(String.format(UPDATE_AVERAGE_PRICE, placeholders), ids.toArray());
+    }
+
+    private ShopUnitStatisticItem mapStatisticItem(ResultSet resultSet) throws SQLException {
+        long price = resultSet.getLong("price");
+        boolean isPriceNull = resultSet.wasNull();
+        return new ShopUnitStatisticItem(
+                resultSet.getObject("id", UUID.class),
+                resultSet.getString("name"),
+                resultSet.getObject("parent_id", UUID.class),
+                ShopUnitType.valueOf(resultSet.getString("type")),
+                isPriceNull ? null : price,
+                resultSet.getTimestamp("date").toInstant().atOffset(ZoneOffset.UTC));
+    }
+
+    private ShopUnit mapShopUnit(ResultSet resultSet) throws SQLException {
+        long price = resultSet.getLong("price");
+        boolean isPriceNull = resultSet.wasNull();
+        Timestamp lastPriceUpdatedDate = resultSet.getTimestamp("last_price_updated_date");
+        ShopUnit shopUnit = new ShopUnit.Builder()
+                .withId(resultSet.getObject("id", UUID.class))
+                .withName(resultSet.getString("name"))
+                .withDate(resultSet.getTimestamp("date").toInstant().atOffset(ZoneOffset.UTC))
+                .withLastPriceUpdatedDate(lastPriceUpdatedDate == null ? null
+                        : lastPriceUpdatedDate.toInstant().atOffset(ZoneOffset.UTC))
+                .withParentId(resultSet.getObject("parent_id", UUID.class))
+                .withType(ShopUnitType.valueOf(resultSet.getString("type")))
+                .withPrice(isPriceNull ? null : price)
+                .build();
+        shopUnit.setPriceSum(resultSet.getLong("price_sum"));
+        shopUnit.setOfferCount(resultSet.getLong("offer_count"));
+        return shopUnit;
+    }
+
+    private ShopUnitNode mapNode(ResultSet resultSet) throws SQLException {
+        long price = resultSet.getLong("price");
+        boolean isPriceNull = resultSet.wasNull();
+        return new ShopUnitNode(
+                resultSet.getObject("id", UUID.class),
+                resultSet.getString("name"),
+                resultSet.getTimestamp("date").toInstant().atOffset(ZoneOffset.UTC),
+                resultSet.getObject("parent_id", UUID.class),
+                ShopUnitType.valueOf(resultSet.getString("type")),
+                isPriceNull ? null : price);
+    }
+}
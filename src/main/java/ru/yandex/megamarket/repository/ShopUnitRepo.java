@@ -1,20 +1,115 @@
 package ru.yandex.megamarket.repository;
 
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 import ru.yandex.megamarket.model.ShopUnit;
+import ru.yandex.megamarket.model.ShopUnitStatisticUnit;
 import ru.yandex.megamarket.model.ShopUnitType;
 
-import java.time.OffsetDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 
 @Repository
 public interface ShopUnitRepo extends CrudRepository<ShopUnit, UUID> {
 
-    List<ShopUnit> findAllByTypeAndLastPriceUpdatedDateBetween(ShopUnitType type, OffsetDateTime startDate, OffsetDateTime endDate);
+    /**
+     * Текущее состояние элементов в виде записей истории, без загрузки сущностей
+     * @param ids идентификаторы элементов
+     * @return записи для истории
+     */
+    @Query("select new ru.yandex.megamarket.model.ShopUnitStatisticUnit(u.id, u.name, u.parentId, u.type, u.price, u.date) "
+            + "from ShopUnit u where u.id in :ids")
+    List<ShopUnitStatisticUnit> findStatisticByIdIn(@Param("ids") Collection<UUID> ids);
 
-    List<ShopUnit> findAllByParentId(UUID parentId);
+    /**
+     * Идентификаторы элементов заданного типа, сначала ближние к корню
+     * @param type тип элемента
+     * @param pageable ограничение количества
+     * @return список id
+     */
+    @Query("select u.id from ShopUnit u where u.type = :type order by length(u.path)")
+    List<UUID> findIdsByTypeOrderByDepth(@Param("type") ShopUnitType type, Pageable pageable);
 
-    List<ShopUnit> findAllByType(ShopUnitType type);
+    /**
+     * Идентификаторы существующих элементов заданного типа
+     * @param ids идентификаторы элементов
+     * @param type тип элемента
+     * @return найденные id
+     */
+    @Query("select u.id from ShopUnit u where u.id in :ids and u.type = :type")
+    List<UUID> findIdsByIdInAndType(@Param("ids") Collection<UUID> ids, @Param("type") ShopUnitType type);
+
+    /**
+     * Получение материализованных путей элементов без загрузки сущностей
+     * @param ids идентификаторы элементов
+     * @return пути найденных элементов
+     */
+    @Query("select u.path from ShopUnit u where u.id in :ids")
+    List<String> findPathsByIdIn(@Param("ids") Collection<UUID> ids);
+
+    /**
+     * Получение id элемента и всех его потомков
+     * @param path материализованный путь корня поддерева
+     * @return список id поддерева
+     */
+    @Query("select u.id from ShopUnit u where u.path like concat(:path, '%')")
+    List<UUID> findSubtreeIds(@Param("path") String path);
+
+    /**
+     * Получение длины самого длинного пути в поддереве, то есть пути самого глубокого потомка
+     * @param path материализованный путь корня поддерева
+     * @return длина пути
+     */
+    @Query("select max(length(u.path)) from ShopUnit u where u.path like concat(:path, '%')")
+    int findMaxPathLength(@Param("path") String path);
+
+    /**
+     * Удаление элемента вместе со всем поддеревом
+     * @param path материализованный путь корня поддерева
+     */
+    @Modifying
+    @Transactional
+    @Query("delete from ShopUnit u where u.path like concat(:path, '%')")
+    void deleteSubtree(@Param("path") String path);
+
+    /**
+     * Вычитание удаленного поддерева из суммы цен и количества товаров всех предков одним запросом
+     * @param ids идентификаторы предков
+     * @param priceSum сумма цен удаленного поддерева
+     * @param offerCount количество товаров удаленного поддерева
+     */
+    @Modifying
+    @Transactional
+    @Query("update ShopUnit u set u.priceSum = u.priceSum - :priceSum, u.offerCount = u.offerCount - :offerCount "
+            + "where u.id in :ids")
+    void subtractFromAggregates(@Param("ids") Collection<UUID> ids, @Param("priceSum") long priceSum,
+                                @Param("offerCount") long offerCount);
+
+    /**
+     * Пересчет средней цены категорий по сумме цен и количеству товаров.
+     * HQL не разбирает арифметику внутри case в update, поэтому запрос нативный
+     * @param ids идентификаторы категорий
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "update shop_unit set price = case when offer_count = 0 then null else price_sum / offer_count end "
+            + "where id in (:ids)", nativeQuery = true)
+    void updateAveragePrice(@Param("ids") Collection<UUID> ids);
+
+    /**
+     * Замена префикса материализованного пути у всего поддерева при переносе категории
+     * @param oldPath путь корня поддерева до переноса
+     * @param newPath путь корня поддерева после переноса
+     */
+    @Modifying
+    @Transactional
+    @Query("update ShopUnit u set u.path = concat(:newPath, substring(u.path, length(:oldPath) + 1)) "
+            + "where u.path like concat(:oldPath, '%')")
+    void moveSubtree(@Param("oldPath") String oldPath, @Param("newPath") String newPath);
 }
@@ -0,0 +1,23 @@
+package ru.yandex.megamarket.repository;
+
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+import ru.yandex.megamarket.model.ShopUnitStatisticUnit;
+
+@Repository
+public interface ShopUnitStatisticRepo extends CrudRepository<ShopUnitStatisticUnit, Long> {
+
+    /**
+     * Удаление истории элемента и всех его потомков. Вызывать до удаления самих элементов
+     * @param path материализованный путь корня поддерева
+     */
+    @Modifying
+    @Transactional
+    @Query("delete from ShopUnitStatisticUnit s where s.id in "
+            + "(select u.id from ShopUnit u where u.path like concat(:path, '%'))")
+    void deleteSubtreeHistory(@Param("path") String path);
+}
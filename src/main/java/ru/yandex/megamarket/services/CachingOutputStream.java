@@ -0,0 +1,51 @@
+package ru.yandex.megamarket.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Поток, который пишет данные дальше и параллельно копирует их в буфер для кэша.
+ * Если ответ превышает лимит, копирование прекращается и буфер освобождается
+ */
+public class CachingOutputStream extends FilterOutputStream {
+
+    private final long limit;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    public CachingOutputStream(OutputStream out, long limit) {
+        super(out);
+        this.limit = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        if (buffer != null) {
+            buffer.write(b);
+            checkLimit();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (buffer != null) {
+            buffer.write(b, off, len);
+            checkLimit();
+        }
+    }
+
+    /**
+     * Получение записанных данных
+     * @return копия данных или null, если лимит был превышен
+     */
+    public byte[] getCachedBytes() {
+        return buffer == null ? null : buffer.toByteArray();
+    }
+
+    private void checkLimit() {
+        if (buffer.size() > limit) buffer = null;
+    }
+}
@@ -0,0 +1,160 @@
+package ru.yandex.megamarket.services;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.yandex.megamarket.model.ShopUnitStatisticResponse;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш ответов на чтение каталога.
+ * Данные меняются только импортом и удалением, которые точечно сбрасывают затронутые элементы
+ */
+@Service
+@Slf4j
+public class CatalogCacheService {
+
+    /**
+     * Готовые JSON ответы /nodes/{id}, вес записи - размер в байтах
+     */
+    private final Cache<UUID, byte[]> nodesCache;
+
+    /**
+     * Ответы /sales по дате запроса
+     */
+    private final Cache<String, ShopUnitStatisticResponse> salesCache;
+
+    private final long maxNodeEntryWeight;
+
+    /**
+     * Номер поколения данных, увеличивается при каждом сбросе кэша.
+     * Ответ, прочитанный до изменения данных, не попадает в кэш после сброса
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    @Autowired
+    public CatalogCacheService(@Value("${cache.nodes.maximum-weight}") long nodesMaximumWeight,
+                               @Value("${cache.nodes.maximum-entry-weight}") long maxNodeEntryWeight,
+                               @Value("${cache.sales.maximum-size}") long salesMaximumSize,
+                               MeterRegistry meterRegistry) {
+        this.nodesCache = Caffeine.newBuilder()
+                .maximumWeight(nodesMaximumWeight)
+                .weigher((UUID id, byte[] json) -> json.length)
+                .recordStats()
+                .build();
+        this.salesCache = Caffeine.newBuilder()
+                .maximumSize(salesMaximumSize)
+                .recordStats()
+                .build();
+        this.maxNodeEntryWeight = maxNodeEntryWeight;
+        CaffeineCacheMetrics.monitor(meterRegistry, nodesCache, "nodes");
+        CaffeineCacheMetrics.monitor(meterRegistry, salesCache, "sales");
+    }
+
+    /**
+     * Текущее поколение данных, запоминается перед чтением из БД
+     * @return номер поколения
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Максимальный размер одного ответа /nodes/{id}, который имеет смысл кэшировать
+     * @return размер в байтах
+     */
+    public long getMaxNodeEntryWeight() {
+        return maxNodeEntryWeight;
+    }
+
+    public byte[] getNode(UUID id) {
+        return nodesCache.getIfPresent(id);
+    }
+
+    /**
+     * Сохранение ответа /nodes/{id}, если данные не менялись с момента чтения
+     * @param id идентификатор элемента
+     * @param json готовый ответ
+     * @param readGeneration поколение данных на момент чтения
+     */
+    public void putNode(UUID id, byte[] json, long readGeneration) {
+        if (generation.get() != readGeneration) return;
+        nodesCache.put(id, json);
+        // Сброс мог пройти между проверкой и записью
+        if (generation.get() != readGeneration) nodesCache.invalidate(id);
+    }
+
+    public ShopUnitStatisticResponse getSales(String date) {
+        return salesCache.getIfPresent(date);
+    }
+
+    /**
+     * Сохранение ответа /sales, если данные не менялись с момента чтения
+     * @param date дата запроса
+     * @param response ответ
+     * @param readGeneration поколение данных на момент чтения
+     */
+    public void putSales(String date, ShopUnitStatisticResponse response, long readGeneration) {
+        if (generation.get() != readGeneration) return;
+        salesCache.put(date, response);
+        if (generation.get() != readGeneration) salesCache.invalidate(date);
+    }
+
+    /**
+     * Сброс измененных элементов. Внутри транзакции сброс откладывается до ее фиксации,
+     * чтобы параллельное чтение не вернуло в кэш еще не зафиксированное состояние
+     * @param ids идентификаторы измененных и удаленных элементов вместе с их предками
+     */
+    public void invalidate(Collection<UUID> ids) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidateNow(ids);
+                }
+            });
+        } else {
+            invalidateNow(ids);
+        }
+    }
+
+    /**
+     * Сброс всего кэша после фиксации транзакции, когда измененных элементов слишком много
+     */
+    public void invalidateAll() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    invalidateAllNow();
+                }
+            });
+        } else {
+            invalidateAllNow();
+        }
+    }
+
+    private void invalidateAllNow() {
+        generation.incrementAndGet();
+        nodesCache.invalidateAll();
+        salesCache.invalidateAll();
+        log.debug("Кэш сброшен полностью");
+    }
+
+    private void invalidateNow(Collection<UUID> ids) {
+        generation.incrementAndGet();
+        nodesCache.invalidateAll(ids);
+        salesCache.invalidateAll();
+        log.debug("Сброшено элементов кэша: {}", ids.size());
+    }
+}
@@ -0,0 +1,641 @@
+package ru.yandex.megamarket.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.yandex.megamarket.exception.ItemNotFoundException;
+import ru.yandex.megamarket.model.ShopUnit;
+import ru.yandex.megamarket.model.ShopUnitStatisticItem;
+import ru.yandex.megamarket.model.ShopUnitType;
+import ru.yandex.megamarket.repository.ShopUnitJdbcRepo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Каталог в памяти для ответов на чтение без обращения к БД.
+ * Каждому UUID соответствует номер слота, связи дерева, цены и даты хранятся в массивах примитивов по слотам.
+ * Каталог загружается из БД при запуске и обновляется после фиксации каждого изменения до сброса кэша ответов.
+ * Пока каталог не загружен, чтения идут в БД
+ */
+@Service
+@Slf4j
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class CatalogEngine implements ApplicationRunner {
+
+    private static final int NONE = -1;
+    private static final long NULL_VALUE = Long.MIN_VALUE;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int UUID_LENGTH = 36;
+    private static final int DATE_LENGTH = 24;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ShopUnitJdbcRepo shopUnitJdbcRepo;
+    private final SubtreeLockService subtreeLockService;
+    private final JsonFactory jsonFactory;
+    private final boolean enabled;
+
+    /**
+     * Наибольшее поддерево, которое отдается из памяти: ответ собирается целиком под блокировкой чтения
+     */
+    private final int maxBufferedNodes;
+
+    /**
+     * Изменения каталога применяются под блокировкой записи, чтения идут под блокировкой чтения
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Загруженный каталог, null пока каталог не загружен или после изменения, которое его не обновляет
+     */
+    private volatile Catalog catalog;
+
+    @Autowired
+    public CatalogEngine(ShopUnitJdbcRepo shopUnitJdbcRepo, SubtreeLockService subtreeLockService,
+                         ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                         @Value("${catalog.engine.enabled}") boolean enabled,
+                         @Value("${catalog.engine.max-buffered-nodes}") int maxBufferedNodes) {
+        this.shopUnitJdbcRepo = shopUnitJdbcRepo;
+        this.subtreeLockService = subtreeLockService;
+        this.jsonFactory = objectMapper.getFactory();
+        this.enabled = enabled;
+        this.maxBufferedNodes = maxBufferedNodes;
+        Gauge.builder("megamarket.engine.nodes", this, CatalogEngine::size)
+                .description("Элементов в каталоге в памяти, -1 пока каталог не загружен")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Загрузка каталога раньше остальных ApplicationRunner, чтобы прогрев уже шел по памяти
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        reload();
+    }
+
+    /**
+     * Полная загрузка каталога из БД, если каталог в памяти включен. Изменения каталога на это время блокируются,
+     * чтения до замены каталога идут в прежний каталог или в БД
+     */
+    public void reload() {
+        if (!enabled) return;
+        long start = System.nanoTime();
+        Catalog loaded = new Catalog(INITIAL_CAPACITY);
+        SubtreeLockService.SubtreeLock subtreeLock = subtreeLockService.lockAll();
+        try {
+            shopUnitJdbcRepo.findCatalog(loaded::put);
+            lock.writeLock().lock();
+            try {
+                catalog = loaded;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            subtreeLock.close();
+        }
+        log.info("Каталог загружен в память: nodes={} durationMs={}", loaded.index.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Количество элементов каталога
+     * @return количество элементов или -1, если каталог не загружен
+     */
+    public int size() {
+        Catalog current = catalog;
+        return current == null ? -1 : current.index.size();
+    }
+
+    /**
+     * Применение сохраненных элементов после фиксации транзакции. Элементы должны содержать
+     * итоговое состояние: суммы цен и количество товаров категорий берутся из них, а не считаются заново
+     * @param shopUnits измененные элементы и категории
+     */
+    public void putAfterCommit(Collection<ShopUnit> shopUnits) {
+        if (catalog == null) return;
+        List<ShopUnit> snapshot = new ArrayList<>(shopUnits);
+        afterCommit(() -> {
+            lock.writeLock().lock();
+            try {
+                if (catalog != null) catalog.putAll(snapshot);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    /**
+     * Удаление поддерева после фиксации транзакции с вычитанием его товаров из цен предков.
+     * Дата обновления предков не меняется, как и в БД
+     * @param id корень удаленного поддерева
+     */
+    public void removeAfterCommit(UUID id) {
+        if (catalog == null) return;
+        afterCommit(() -> {
+            lock.writeLock().lock();
+            try {
+                if (catalog != null) catalog.remove(id);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    /**
+     * Отключение каталога после фиксации транзакции, если изменение проще загрузить заново, чем применить.
+     * До следующего reload чтения идут в БД
+     */
+    public void resetAfterCommit() {
+        if (catalog == null) return;
+        afterCommit(() -> {
+            lock.writeLock().lock();
+            try {
+                catalog = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        });
+    }
+
+    /**
+     * Ответ /nodes/{id} из памяти в том же виде, что пишет ShopUnitTreeWriter
+     * @param id идентификатор элемента
+     * @return JSON поддерева или null, если каталог не загружен или поддерево больше maxBufferedNodes
+     */
+    public byte[] writeSubtree(UUID id) {
+        lock.readLock().lock();
+        try {
+            Catalog current = catalog;
+            if (current == null) return null;
+            int slot = current.index.get(id);
+            if (slot == NONE) throw new ItemNotFoundException();
+            if (current.subtreeSize[slot] > maxBufferedNodes) return null;
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(current.subtreeSize[slot] * 192);
+            try (JsonGenerator generator = jsonFactory.createGenerator(outputStream)) {
+                current.writeSubtree(slot, generator);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return outputStream.toByteArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Товары, цена которых обновлялась в заданном интервале включительно, проходом по массиву дат
+     * @param startDate начало интервала
+     * @param endDate конец интервала
+     * @return список элементов или null, если каталог не загружен
+     */
+    public List<ShopUnitStatisticItem> findSales(OffsetDateTime startDate, OffsetDateTime endDate) {
+        long from = startDate.toInstant().toEpochMilli();
+        long to = endDate.toInstant().toEpochMilli();
+        lock.readLock().lock();
+        try {
+            Catalog current = catalog;
+            if (current == null) return null;
+            List<ShopUnitStatisticItem> items = new ArrayList<>();
+            for (int slot = 0; slot < current.used; slot++) {
+                long updated = current.lastPriceUpdatedDate[slot];
+                if (current.type[slot] == ShopUnitType.OFFER && updated != NULL_VALUE && updated >= from && updated <= to) {
+                    items.add(current.toStatisticItem(slot));
+                }
+            }
+            return items;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    /**
+     * Массивы каталога. Слоты удаленных элементов переиспользуются, связи хранятся номерами слотов:
+     * родитель, первый и последний ребенок и соседи в списке детей родителя.
+     * Дети идут по возрастанию id, в том же порядке, что и в ответе из БД
+     */
+    private static class Catalog {
+
+        private final UuidSlotMap index;
+        private long[] mostSigBits;
+        private long[] leastSigBits;
+        private int[] parent;
+        private int[] firstChild;
+        private int[] lastChild;
+        private int[] nextSibling;
+        private int[] prevSibling;
+        private int[] subtreeSize;
+
+        /**
+         * Тип элемента, null для слота, на который ссылаются дети, но сам элемент еще не загружен
+         */
+        private ShopUnitType[] type;
+        private String[] name;
+        private long[] price;
+        private long[] priceSum;
+        private long[] offerCount;
+        private long[] date;
+        private long[] lastPriceUpdatedDate;
+
+        /**
+         * Количество когда-либо занятых слотов, свободные слоты ниже этой границы лежат в freeSlots
+         */
+        private int used;
+        private int[] freeSlots = new int[16];
+        private int freeCount;
+
+        Catalog(int capacity) {
+            index = new UuidSlotMap(capacity);
+            allocate(capacity);
+        }
+
+        /**
+         * Запись итогового состояния элемента с переносом к новому родителю
+         */
+        void put(ShopUnit shopUnit) {
+            int slot = slotOf(shopUnit.getId());
+            int newParent = setValues(slot, shopUnit);
+            if (parent[slot] != newParent) {
+                unlink(slot);
+                link(slot, newParent);
+            }
+        }
+
+        /**
+         * Запись итогового состояния нескольких элементов. Сначала все переносимые элементы отсоединяются,
+         * затем присоединяются к новым родителям: иначе при перестановке категорий местами
+         * цепочка предков прошла бы через элемент, который еще висит на прежнем родителе
+         */
+        void putAll(List<ShopUnit> shopUnits) {
+            int[] slots = new int[shopUnits.size()];
+            int[] newParents = new int[shopUnits.size()];
+            for (int i = 0; i < slots.length; i++) {
+                slots[i] = slotOf(shopUnits.get(i).getId());
+                newParents[i] = setValues(slots[i], shopUnits.get(i));
+                if (parent[slots[i]] != newParents[i]) {
+                    unlink(slots[i]);
+                } else {
+                    slots[i] = NONE;
+                }
+            }
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] != NONE) link(slots[i], newParents[i]);
+            }
+        }
+
+        /**
+         * Запись значений элемента без изменения связей
+         * @return слот нового родителя
+         */
+        private int setValues(int slot, ShopUnit shopUnit) {
+            type[slot] = shopUnit.getType();
+            name[slot] = shopUnit.getName();
+            price[slot] = shopUnit.getPrice() == null ? NULL_VALUE : shopUnit.getPrice();
+            priceSum[slot] = shopUnit.getPriceSum();
+            offerCount[slot] = shopUnit.getOfferCount();
+            date[slot] = toMillis(shopUnit.getDate());
+            lastPriceUpdatedDate[slot] = toMillis(shopUnit.getLastPriceUpdatedDate());
+            return shopUnit.getParentId() == null ? NONE : slotOf(shopUnit.getParentId());
+        }
+
+        /**
+         * Удаление поддерева с вычитанием его суммы цен и количества товаров из всех предков
+         */
+        void remove(UUID id) {
+            int slot = index.get(id);
+            if (slot == NONE) return;
+            long priceSumDelta = priceSum[slot];
+            long offerCountDelta = offerCount[slot];
+            int ancestor = parent[slot];
+            unlink(slot);
+            if (offerCountDelta > 0) {
+                for (; ancestor != NONE; ancestor = parent[ancestor]) {
+                    priceSum[ancestor] -= priceSumDelta;
+                    offerCount[ancestor] -= offerCountDelta;
+                    price[ancestor] = offerCount[ancestor] == 0 ? NULL_VALUE : priceSum[ancestor] / offerCount[ancestor];
+                }
+            }
+            free(slot);
+        }
+
+        /**
+         * Обход поддерева в глубину по связям детей без рекурсии
+         */
+        void writeSubtree(int root, JsonGenerator generator) throws IOException {
+            // Буфер для записи id и дат без создания строк, свой у каждого чтения
+            char[] chars = new char[UUID_LENGTH];
+            int slot = root;
+            while (true) {
+                writeNode(slot, generator, chars);
+                if (type[slot] == ShopUnitType.CATEGORY && firstChild[slot] != NONE) {
+                    slot = firstChild[slot];
+                    continue;
+                }
+                if (type[slot] == ShopUnitType.CATEGORY) closeCategory(generator);
+                // Поднимаемся, закрывая категории, пока не найдется следующий сосед
+                while (slot != root && nextSibling[slot] == NONE) {
+                    slot = parent[slot];
+                    closeCategory(generator);
+                }
+                if (slot == root) return;
+                slot = nextSibling[slot];
+            }
+        }
+
+        ShopUnitStatisticItem toStatisticItem(int slot) {
+            int parentSlot = parent[slot];
+            return new ShopUnitStatisticItem(new UUID(mostSigBits[slot], leastSigBits[slot]), name[slot],
+                    parentSlot == NONE ? null : new UUID(mostSigBits[parentSlot], leastSigBits[parentSlot]),
+                    type[slot], price[slot] == NULL_VALUE ? null : price[slot],
+                    OffsetDateTime.ofInstant(Instant.ofEpochMilli(date[slot]), ZoneOffset.UTC));
+        }
+
+        private void writeNode(int slot, JsonGenerator generator, char[] chars) throws IOException {
+            generator.writeStartObject();
+            generator.writeFieldName("id");
+            writeUuid(slot, generator, chars);
+            generator.writeStringField("name", name[slot]);
+            generator.writeFieldName("date");
+            writeDate(date[slot], generator, chars);
+            generator.writeFieldName("parentId");
+            if (parent[slot] == NONE) {
+                generator.writeNull();
+            } else {
+                writeUuid(parent[slot], generator, chars);
+            }
+            generator.writeStringField("type", type[slot].name());
+            if (price[slot] == NULL_VALUE) {
+                generator.writeNullField("price");
+            } else {
+                generator.writeNumberField("price", price[slot]);
+            }
+            if (type[slot] == ShopUnitType.CATEGORY) {
+                generator.writeArrayFieldStart("children");
+            } else {
+                generator.writeNullField("children");
+                generator.writeEndObject();
+            }
+        }
+
+        private static void closeCategory(JsonGenerator generator) throws IOException {
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+
+        private void writeUuid(int slot, JsonGenerator generator, char[] chars) throws IOException {
+            long most = mostSigBits[slot];
+            long least = leastSigBits[slot];
+            hex(most >>> 32, 8, chars, 0);
+            chars[8] = '-';
+            hex(most >>> 16, 4, chars, 9);
+            chars[13] = '-';
+            hex(most, 4, chars, 14);
+            chars[18] = '-';
+            hex(least >>> 48, 4, chars, 19);
+            chars[23] = '-';
+            hex(least, 12, chars, 24);
+            generator.writeString(chars, 0, UUID_LENGTH);
+        }
+
+        private static void hex(long value, int digits, char[] chars, int offset) {
+            for (int i = offset + digits - 1; i >= offset; i--) {
+                chars[i] = HEX[(int) (value & 0xF)];
+                value >>>= 4;
+            }
+        }
+
+        /**
+         * Дата в формате ParserService.DATE_FORMATTER для UTC, число дней переводится в дату по григорианскому календарю
+         */
+        private static void writeDate(long millis, JsonGenerator generator, char[] chars) throws IOException {
+            long days = Math.floorDiv(millis, 86_400_000L);
+            int millisOfDay = (int) Math.floorMod(millis, 86_400_000L);
+            long era = Math.floorDiv(days + 719_468, 146_097);
+            long dayOfEra = days + 719_468 - era * 146_097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long monthIndex = (5 * dayOfYear + 2) / 153;
+            int day = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+            int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+            if (year < 0 || year > 9999) {
+                generator.writeString(ParserService.DATE_FORMATTER.format(
+                        OffsetDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC)));
+                return;
+            }
+            digits((int) year, 4, chars, 0);
+            chars[4] = '-';
+            digits(month, 2, chars, 5);
+            chars[7] = '-';
+            digits(day, 2, chars, 8);
+            chars[10] = 'T';
+            digits(millisOfDay / 3_600_000, 2, chars, 11);
+            chars[13] = ':';
+            digits(millisOfDay / 60_000 % 60, 2, chars, 14);
+            chars[16] = ':';
+            digits(millisOfDay / 1000 % 60, 2, chars, 17);
+            chars[19] = '.';
+            digits(millisOfDay % 1000, 3, chars, 20);
+            chars[23] = 'Z';
+            generator.writeString(chars, 0, DATE_LENGTH);
+        }
+
+        private static void digits(int value, int count, char[] chars, int offset) {
+            for (int i = offset + count - 1; i >= offset; i--) {
+                chars[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+        }
+
+        /**
+         * Слот элемента, новый элемент получает пустой слот без родителя
+         */
+        private int slotOf(UUID id) {
+            int slot = index.get(id);
+            if (slot != NONE) return slot;
+            if (freeCount > 0) {
+                slot = freeSlots[--freeCount];
+            } else {
+                if (used == parent.length) grow(parent.length * 2);
+                slot = used++;
+            }
+            index.put(id, slot);
+            mostSigBits[slot] = id.getMostSignificantBits();
+            leastSigBits[slot] = id.getLeastSignificantBits();
+            parent[slot] = NONE;
+            firstChild[slot] = NONE;
+            lastChild[slot] = NONE;
+            nextSibling[slot] = NONE;
+            prevSibling[slot] = NONE;
+            subtreeSize[slot] = 1;
+            type[slot] = null;
+            name[slot] = null;
+            price[slot] = NULL_VALUE;
+            priceSum[slot] = 0;
+            offerCount[slot] = 0;
+            date[slot] = NULL_VALUE;
+            lastPriceUpdatedDate[slot] = NULL_VALUE;
+            return slot;
+        }
+
+        /**
+         * Отсоединение элемента от родителя, размер поддерева вычитается из всех предков
+         */
+        private void unlink(int slot) {
+            int parentSlot = parent[slot];
+            if (parentSlot == NONE) return;
+            if (prevSibling[slot] == NONE) {
+                firstChild[parentSlot] = nextSibling[slot];
+            } else {
+                nextSibling[prevSibling[slot]] = nextSibling[slot];
+            }
+            if (nextSibling[slot] == NONE) {
+                lastChild[parentSlot] = prevSibling[slot];
+            } else {
+                prevSibling[nextSibling[slot]] = prevSibling[slot];
+            }
+            for (int ancestor = parentSlot; ancestor != NONE; ancestor = parent[ancestor]) {
+                subtreeSize[ancestor] -= subtreeSize[slot];
+            }
+            parent[slot] = NONE;
+            nextSibling[slot] = NONE;
+            prevSibling[slot] = NONE;
+        }
+
+        /**
+         * Присоединение элемента к родителю на место по возрастанию id, размер поддерева добавляется всем предкам.
+         * Место ищется с конца списка: при загрузке каталога в порядке путей элемент сразу встает последним
+         */
+        private void link(int slot, int parentSlot) {
+            if (parentSlot == NONE) return;
+            parent[slot] = parentSlot;
+            int previous = lastChild[parentSlot];
+            while (previous != NONE && compareIds(previous, slot) > 0) {
+                previous = prevSibling[previous];
+            }
+            int next = previous == NONE ? firstChild[parentSlot] : nextSibling[previous];
+            prevSibling[slot] = previous;
+            nextSibling[slot] = next;
+            if (previous == NONE) {
+                firstChild[parentSlot] = slot;
+            } else {
+                nextSibling[previous] = slot;
+            }
+            if (next == NONE) {
+                lastChild[parentSlot] = slot;
+            } else {
+                prevSibling[next] = slot;
+            }
+            for (int ancestor = parentSlot; ancestor != NONE; ancestor = parent[ancestor]) {
+                subtreeSize[ancestor] += subtreeSize[slot];
+            }
+        }
+
+        /**
+         * Сравнение id как строк UUID: шестнадцатеричная запись без знака сравнивается так же, как сами биты
+         */
+        private int compareIds(int first, int second) {
+            int result = Long.compareUnsigned(mostSigBits[first], mostSigBits[second]);
+            return result != 0 ? result : Long.compareUnsigned(leastSigBits[first], leastSigBits[second]);
+        }
+
+        /**
+         * Освобождение слотов отсоединенного поддерева
+         */
+        private void free(int root) {
+            int[] stack = new int[16];
+            int depth = 0;
+            stack[depth++] = root;
+            while (depth > 0) {
+                int slot = stack[--depth];
+                for (int child = firstChild[slot]; child != NONE; child = nextSibling[child]) {
+                    if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+                    stack[depth++] = child;
+                }
+                index.remove(new UUID(mostSigBits[slot], leastSigBits[slot]));
+                name[slot] = null;
+                type[slot] = null;
+                lastPriceUpdatedDate[slot] = NULL_VALUE;
+                if (freeCount == freeSlots.length) freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+                freeSlots[freeCount++] = slot;
+            }
+        }
+
+        private void allocate(int capacity) {
+            mostSigBits = new long[capacity];
+            leastSigBits = new long[capacity];
+            parent = new int[capacity];
+            firstChild = new int[capacity];
+            lastChild = new int[capacity];
+            nextSibling = new int[capacity];
+            prevSibling = new int[capacity];
+            subtreeSize = new int[capacity];
+            type = new ShopUnitType[capacity];
+            name = new String[capacity];
+            price = new long[capacity];
+            priceSum = new long[capacity];
+            offerCount = new long[capacity];
+            date = new long[capacity];
+            lastPriceUpdatedDate = new long[capacity];
+        }
+
+        private void grow(int capacity) {
+            mostSigBits = Arrays.copyOf(mostSigBits, capacity);
+            leastSigBits = Arrays.copyOf(leastSigBits, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            lastChild = Arrays.copyOf(lastChild, capacity);
+            nextSibling = Arrays.copyOf(nextSibling, capacity);
+            prevSibling = Arrays.copyOf(prevSibling, capacity);
+            subtreeSize = Arrays.copyOf(subtreeSize, capacity);
+            type = Arrays.copyOf(type, capacity);
+            name = Arrays.copyOf(name, capacity);
+            price = Arrays.copyOf(price, capacity);
+            priceSum = Arrays.copyOf(priceSum, capacity);
+            offerCount = Arrays.copyOf(offerCount, capacity);
+            date = Arrays.copyOf(date, capacity);
+            lastPriceUpdatedDate = Arrays.copyOf(lastPriceUpdatedDate, capacity);
+        }
+
+        private static long toMillis(OffsetDateTime dateTime) {
+            return dateTime == null ? NULL_VALUE : dateTime.toInstant().toEpochMilli();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package ru.yandex.megamarket.services;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.yandex.megamarket.repository.SqlStatementCounter;
+
+/**
+ * Метрики операций каталога: время операций и их этапов, размеры обработанных поддеревьев
+ * и количество SQL запросов на операцию. Доступны через /actuator/prometheus
+ */
+@Service
+public class CatalogMetricsService {
+
+    public static final String IMPORT = "import";
+    public static final String BULK_IMPORT = "bulk_import";
+    public static final String DELETE = "delete";
+    public static final String NODES = "nodes";
+    public static final String LIST = "list";
+    public static final String EXPORT = "export";
+    public static final String SALES = "sales";
+    public static final String STATISTIC = "statistic";
+
+    private final MeterRegistry meterRegistry;
+    private final SqlStatementCounter sqlStatementCounter;
+
+    /**
+     * Реестр для замеров прогрева. Он нигде не публикуется, поэтому прогрев не искажает метрики операций
+     */
+    private final MeterRegistry warmUpRegistry = new SimpleMeterRegistry();
+    private final ThreadLocal<Boolean> warmUp = ThreadLocal.withInitial(() -> false);
+
+    @Autowired
+    public CatalogMetricsService(MeterRegistry meterRegistry, SqlStatementCounter sqlStatementCounter) {
+        this.meterRegistry = meterRegistry;
+        this.sqlStatementCounter = sqlStatementCounter;
+    }
+
+    /**
+     * Начало прогрева: замеры текущего потока до stopWarmUp не попадают в опубликованные метрики
+     */
+    public void startWarmUp() {
+        warmUp.set(true);
+    }
+
+    public void stopWarmUp() {
+        warmUp.remove();
+    }
+
+    /**
+     * Начало операции, сбрасывает счетчик SQL запросов потока
+     * @return замер времени операции
+     */
+    public Timer.Sample startOperation() {
+        sqlStatementCounter.reset();
+        return Timer.start(meterRegistry);
+    }
+
+    /**
+     * Окончание операции: время и количество SQL запросов
+     * @param sample замер из startOperation
+     * @param operation название операции
+     * @return длительность операции в наносекундах
+     */
+    public long stopOperation(Timer.Sample sample, String operation) {
+        long duration = sample.stop(Timer.builder("megamarket.operation")
+                .tag("operation", operation)
+                .publishPercentileHistogram()
+                .register(registry()));
+        DistributionSummary.builder("megamarket.sql.statements")
+                .tag("operation", operation)
+                .register(registry())
+                .record(sqlStatementCounter.get());
+        return duration;
+    }
+
+    /**
+     * Количество SQL запросов текущего потока с начала операции
+     * @return количество запросов
+     */
+    public long getSqlStatements() {
+        return sqlStatementCounter.get();
+    }
+
+    public Timer.Sample startPhase() {
+        return Timer.start(meterRegistry);
+    }
+
+    /**
+     * Окончание этапа операции
+     * @param sample замер из startPhase
+     * @param operation название операции
+     * @param phase название этапа
+     */
+    public void stopPhase(Timer.Sample sample, String operation, String phase) {
+        sample.stop(Timer.builder("megamarket.phase")
+                .tag("operation", operation)
+                .tag("phase", phase)
+                .register(registry()));
+    }
+
+    /**
+     * Количество элементов, обработанных операцией: элементов импорта, удаленного или прочитанного поддерева
+     * @param operation название операции
+     * @param count количество элементов
+     */
+    public void recordItems(String operation, long count) {
+        DistributionSummary.builder("megamarket.items")
+                .tag("operation", operation)
+                .register(registry())
+                .record(count);
+    }
+
+    /**
+     * Количество элементов импорта, которые совпали с сохраненными и не записывались
+     * @param operation название операции
+     * @param count количество пропущенных элементов
+     */
+    public void recordSkipped(String operation, long count) {
+        DistributionSummary.builder("megamarket.items.skipped")
+                .tag("operation", operation)
+                .register(registry())
+                .record(count);
+    }
+
+    private MeterRegistry registry() {
+        return warmUp.get() ? warmUpRegistry : meterRegistry;
+    }
+}
@@ -0,0 +1,392 @@
+package ru.yandex.megamarket.services;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import ru.yandex.megamarket.exception.ItemNotFoundException;
+import ru.yandex.megamarket.exception.ValidationFailedException;
+import ru.yandex.megamarket.model.ImportJob;
+import ru.yandex.megamarket.model.ImportJobStatus;
+import ru.yandex.megamarket.model.ShopUnitImport;
+import ru.yandex.megamarket.model.ShopUnitImportBatch;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.model.ShopUnitStatisticUnit;
+import ru.yandex.megamarket.model.ShopUnitType;
+import ru.yandex.megamarket.repository.ImportJobRepo;
+import ru.yandex.megamarket.repository.ShopUnitRepo;
+
+import javax.annotation.PreDestroy;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Асинхронный импорт: запрос проверяется, сохраняется в БД и сразу получает id задачи,
+ * а обработчики применяют ожидающие задачи в порядке updateDate. При одном обработчике задачи применяются
+ * строго по очереди, при нескольких - начинаются по очереди и идут параллельно,
+ * пока не затрагивают общие категории. Задачи одного updateDate, накопившиеся в очереди,
+ * применяются одним импортом
+ */
+@Service
+@Slf4j
+public class ImportJobService implements ApplicationRunner {
+
+    /**
+     * Сколько раз искать следующую задачу, если ее успел захватить другой обработчик
+     */
+    private static final int MAX_CLAIM_ATTEMPTS = 5;
+
+    private final ImportJobRepo importJobRepo;
+    private final ShopUnitRepo shopUnitRepo;
+    private final ShopUnitService shopUnitService;
+    private final ShopUnitImportValidator shopUnitImportValidator;
+    private final ParserService parserService;
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final int workers;
+    private final Duration pollInterval;
+
+    /**
+     * Сколько задача ждет в очереди задачи того же updateDate, чтобы примениться вместе с ними
+     */
+    private final Duration coalesceWindow;
+    private final int maxCoalescedJobs;
+    private final ExecutorService executor;
+
+    /**
+     * Сигнал обработчикам о новой задаче, без него очередь проверяется раз в pollInterval
+     */
+    private final Semaphore wakeUp = new Semaphore(0);
+
+    /**
+     * Задачи, ожидающие применения
+     */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * Время от приема задачи до начала ее применения
+     */
+    private final Timer lag;
+
+    /**
+     * Количество задач, примененных одним импортом
+     */
+    private final DistributionSummary coalesced;
+
+    private volatile boolean running;
+
+    @Autowired
+    public ImportJobService(ImportJobRepo importJobRepo, ShopUnitRepo shopUnitRepo, ShopUnitService shopUnitService,
+                            ShopUnitImportValidator shopUnitImportValidator, ParserService parserService,
+                            ObjectMapper objectMapper, MeterRegistry meterRegistry,
+                            @Value("${imports.async.workers}") int workers,
+                            @Value("${imports.async.poll-interval}") Duration pollInterval,
+                            @Value("${imports.async.coalesce-window}") Duration coalesceWindow,
+                            @Value("${imports.async.max-coalesced-jobs}") int maxCoalescedJobs) {
+        this.importJobRepo = importJobRepo;
+        this.shopUnitRepo = shopUnitRepo;
+        this.shopUnitService = shopUnitService;
+        this.shopUnitImportValidator = shopUnitImportValidator;
+        this.parserService = parserService;
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.workers = workers;
+        this.pollInterval = pollInterval;
+        this.coalesceWindow = coalesceWindow;
+        this.maxCoalescedJobs = maxCoalescedJobs;
+        this.executor = Executors.newFixedThreadPool(workers, runnable -> {
+            Thread thread = new Thread(runnable, "import-job");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.lag = Timer.builder("megamarket.import.jobs.lag")
+                .description("Время от приема задачи импорта до начала ее применения")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.coalesced = DistributionSummary.builder("megamarket.import.jobs.coalesced")
+                .description("Задачи импорта, примененные одним импортом")
+                .register(meterRegistry);
+        Gauge.builder("megamarket.import.jobs.queued", queued, AtomicInteger::get)
+                .description("Задачи импорта, ожидающие применения")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Запуск обработчиков. Задачи, прерванные перезапуском, возвращаются в очередь
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        int requeued = importJobRepo.requeueRunning();
+        queued.set((int) importJobRepo.countByStatus(ImportJobStatus.QUEUED));
+        running = true;
+        for (int i = 0; i < workers; i++) {
+            executor.execute(this::work);
+        }
+        log.info("Очередь импорта: workers={} queued={} requeued={}", workers, queued.get(), requeued);
+    }
+
+    @PreDestroy
+    public void stop() throws InterruptedException {
+        running = false;
+        wakeUp.release(workers);
+        executor.shutdown();
+        // Текущий импорт дорабатывает, незахваченные задачи остаются в очереди до следующего запуска
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            log.warn("Обработчики импорта не завершились, прерванные задачи применятся после перезапуска");
+        }
+    }
+
+    /**
+     * Проверка запроса и постановка его в очередь
+     * @param shopUnitImportRequest запрос на импорт
+     * @return принятая задача
+     */
+    public ImportJob submit(ShopUnitImportRequest shopUnitImportRequest) {
+        ShopUnitImportBatch batch = shopUnitImportValidator.validate(shopUnitImportRequest);
+        String payload;
+        try {
+            payload = objectMapper.writeValueAsString(shopUnitImportRequest);
+        } catch (JsonProcessingException e) {
+            throw new UncheckedIOException(e);
+        }
+        ImportJob job = new ImportJob(UUID.randomUUID(), batch.getUpdateDate(), batch.getItems().size(), payload,
+                OffsetDateTime.now(ZoneOffset.UTC));
+        importJobRepo.save(job);
+        queued.incrementAndGet();
+        wakeUp.release();
+        log.debug("Задача импорта {} принята, элементов: {}", job.getId(), job.getItemCount());
+        return job;
+    }
+
+    /**
+     * Состояние задачи
+     * @param id идентификатор задачи в формате String
+     * @return задача
+     */
+    public ImportJob getJob(String id) {
+        return importJobRepo.findById(parserService.stringToUUID(id)).orElseThrow(ItemNotFoundException::new);
+    }
+
+    private void work() {
+        while (running) {
+            try {
+                List<ImportJob> jobs = claimNext();
+                if (jobs.isEmpty()) {
+                    wakeUp.tryAcquire(pollInterval.toMillis(), TimeUnit.MILLISECONDS);
+                } else {
+                    applyCoalesced(jobs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                // Например, БД недоступна: обработчик ждет и пробует снова
+                log.error("Ошибка очереди импорта", e);
+                try {
+                    Thread.sleep(pollInterval.toMillis());
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Захват следующей задачи вместе с ожидающими задачами того же updateDate.
+     * Задача забирается не раньше, чем через coalesceWindow после приема,
+     * чтобы задачи, пришедшие следом, применились вместе с ней
+     * @return задачи в порядке поступления или пустой список, если очередь пуста
+     */
+    private List<ImportJob> claimNext() throws InterruptedException {
+        for (int attempt = 0; attempt < MAX_CLAIM_ATTEMPTS; ) {
+            ImportJob first = importJobRepo.findFirstByStatusOrderByUpdateDateAscCreatedAtAsc(ImportJobStatus.QUEUED)
+                    .orElse(null);
+            if (first == null) return List.of();
+            long waitMillis = Duration.between(OffsetDateTime.now(ZoneOffset.UTC),
+                    first.getCreatedAt().plus(coalesceWindow)).toMillis();
+            if (waitMillis > 0) {
+                Thread.sleep(waitMillis);
+                continue;
+            }
+
+            OffsetDateTime startedAt = OffsetDateTime.now(ZoneOffset.UTC);
+            List<ImportJob> claimed = new ArrayList<>();
+            for (ImportJob job : importJobRepo.findByStatusAndUpdateDateOrderByCreatedAtAsc(ImportJobStatus.QUEUED,
+                    first.getUpdateDate(), PageRequest.of(0, maxCoalescedJobs))) {
+                if (importJobRepo.claim(job.getId(), startedAt) == 1) {
+                    queued.decrementAndGet();
+                    lag.record(Duration.between(job.getCreatedAt(), startedAt));
+                    claimed.add(job);
+                }
+            }
+            if (!claimed.isEmpty()) return claimed;
+            attempt++;
+        }
+        return List.of();
+    }
+
+    /**
+     * Применение задач одного updateDate. Подряд идущие задачи без общих элементов объединяются в один импорт:
+     * общие категории пересчитываются и записываются один раз, а итоговые цены и даты те же,
+     * что при применении по очереди. Задача, в которой есть элементы предыдущих, начинает новую группу.
+     * Задача, родители которой появляются только в ней самой, в предыдущих задачах группы или в БД,
+     * проверяется так же, как при применении по очереди. Остальные задачи применяются отдельно
+     * после предыдущих, чтобы не увидеть категории из следующих задач. Задача, которая переносит категорию из БД,
+     * тоже применяется отдельно: проверка циклов идет по БД, и в объединенном импорте перенос из следующей задачи
+     * мог бы скрыть цикл, на котором задача откажет при применении по очереди
+     * @param jobs задачи в порядке поступления
+     */
+    private void applyCoalesced(List<ImportJob> jobs) {
+        List<ImportJob> group = new ArrayList<>();
+        List<ShopUnitImportRequest> requests = new ArrayList<>();
+        Map<UUID, ShopUnitType> groupTypes = new HashMap<>();
+        for (ImportJob job : jobs) {
+            ShopUnitImportRequest request;
+            ShopUnitImportBatch batch;
+            try {
+                request = objectMapper.readValue(job.getPayload(), ShopUnitImportRequest.class);
+            } catch (JsonProcessingException e) {
+                log.warn("Задача импорта {} не читается", job.getId(), e);
+                finish(job, ImportJobStatus.FAILED, e.getClass().getSimpleName());
+                continue;
+            }
+            try {
+                batch = shopUnitImportValidator.validate(request);
+            } catch (ValidationFailedException e) {
+                finish(job, ImportJobStatus.FAILED, describe(e));
+                continue;
+            }
+
+            boolean separate = !hasKnownParents(batch, groupTypes) || movesStoredCategory(batch);
+            if (separate || batch.getItems().keySet().stream().anyMatch(groupTypes::containsKey)) {
+                applyGroup(group, requests);
+                group.clear();
+                requests.clear();
+                groupTypes.clear();
+            }
+            if (separate) {
+                applyGroup(List.of(job), List.of(request));
+                continue;
+            }
+            group.add(job);
+            requests.add(request);
+            batch.getItems().forEach((id, item) -> groupTypes.put(id, item.getType()));
+        }
+        applyGroup(group, requests);
+    }
+
+    /**
+     * Проверка, что родители элементов задачи - категории из самой задачи, из предыдущих задач группы или из БД
+     * @param batch проверенная задача
+     * @param groupTypes типы элементов предыдущих задач группы
+     */
+    private boolean hasKnownParents(ShopUnitImportBatch batch, Map<UUID, ShopUnitType> groupTypes) {
+        Set<UUID> storedParentIds = new HashSet<>();
+        for (UUID parentId : batch.getParentIds().values()) {
+            if (parentId == null || batch.getItems().containsKey(parentId)) continue;
+            ShopUnitType type = groupTypes.get(parentId);
+            if (type == null) {
+                storedParentIds.add(parentId);
+            } else if (type != ShopUnitType.CATEGORY) {
+                return false;
+            }
+        }
+        return storedParentIds.isEmpty()
+                || shopUnitRepo.findIdsByIdInAndType(storedParentIds, ShopUnitType.CATEGORY).size()
+                == storedParentIds.size();
+    }
+
+    /**
+     * Проверка, что задача переносит к другому родителю категорию, которая уже есть в БД
+     * @param batch проверенная задача
+     */
+    private boolean movesStoredCategory(ShopUnitImportBatch batch) {
+        List<UUID> categoryIds = new ArrayList<>();
+        batch.getItems().forEach((id, item) -> {
+            if (item.getType() == ShopUnitType.CATEGORY) categoryIds.add(id);
+        });
+        if (categoryIds.isEmpty()) return false;
+        for (ShopUnitStatisticUnit stored : shopUnitRepo.findStatisticByIdIn(categoryIds)) {
+            if (!Objects.equals(stored.getParentId(), batch.getParentId(stored.getId()))) return true;
+        }
+        return false;
+    }
+
+    private void applyGroup(List<ImportJob> group, List<ShopUnitImportRequest> requests) {
+        if (group.isEmpty()) return;
+        coalesced.record(group.size());
+        if (group.size() == 1) {
+            apply(group.get(0), requests.get(0));
+            return;
+        }
+
+        List<ShopUnitImport> items = new ArrayList<>();
+        requests.forEach(request -> items.addAll(request.getItems()));
+        try {
+            shopUnitService.importShopUnitItems(new ShopUnitImportRequest(items, requests.get(0).getUpdateDate()));
+            group.forEach(job -> finish(job, ImportJobStatus.DONE, null));
+        } catch (RuntimeException e) {
+            // Объединенный импорт откатился целиком, задачи применяются по одной, чтобы ошибка досталась своей задаче
+            log.debug("Объединенный импорт из {} задач не применен, задачи применяются по одной", group.size());
+            for (int i = 0; i < group.size(); i++) {
+                apply(group.get(i), requests.get(i));
+            }
+        }
+    }
+
+    private void apply(ImportJob job, ShopUnitImportRequest request) {
+        try {
+            shopUnitService.importShopUnitItems(request);
+            finish(job, ImportJobStatus.DONE, null);
+        } catch (ValidationFailedException e) {
+            // Проверки, которым нужны данные из БД, проходят только при применении
+            finish(job, ImportJobStatus.FAILED, describe(e));
+        } catch (RuntimeException e) {
+            log.warn("Задача импорта {} не применена", job.getId(), e);
+            finish(job, ImportJobStatus.FAILED, e.getClass().getSimpleName());
+        }
+    }
+
+    private void finish(ImportJob job, ImportJobStatus status, String error) {
+        importJobRepo.finish(job.getId(), status, OffsetDateTime.now(ZoneOffset.UTC), error);
+        Counter.builder("megamarket.import.jobs")
+                .tag("status", status.name())
+                .register(meterRegistry)
+                .increment();
+    }
+
+    private static String describe(ValidationFailedException e) {
+        String description = e.getErrors().isEmpty() ? e.getMessage() : e.getMessage() + ": "
+                + e.getErrors().stream().map(itemError -> itemError.getId() + " - " + itemError.getMessage())
+                .collect(Collectors.joining("; "));
+        return description.length() <= ImportJob.ERROR_LENGTH ? description
+                : description.substring(0, ImportJob.ERROR_LENGTH);
+    }
+}
@@ -4,9 +4,12 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import ru.yandex.megamarket.exception.ValidationFailedException;
 
+import java.time.DateTimeException;
 import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
+import java.util.Arrays;
 import java.util.UUID;
 
 @Service
@@ -17,37 +20,152 @@ public class ParserService {
     public static final String FORMAT_DATE_TIME = "yyyy-MM-dd'T'HH:mm:ss.SSS[X]";
 
     /**
-     * Проверка даты на ISO 8601
+     * Форматтер неизменяемый и потокобезопасный, поэтому создается один раз
+     */
+    public static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern(FORMAT_DATE_TIME);
+
+    /**
+     * Длина даты вида 2022-02-01T12:00:00.000Z, которую разбирает быстрый путь
+     */
+    private static final int LENGTH_UTC_DATE = 24;
+
+    /**
+     * Значения шестнадцатеричных цифр по коду символа, -1 для остальных символов
+     */
+    private static final byte[] HEX_DIGITS = new byte['f' + 1];
+
+    static {
+        Arrays.fill(HEX_DIGITS, (byte) -1);
+        for (int i = 0; i < 10; i++) HEX_DIGITS['0' + i] = (byte) i;
+        for (int i = 0; i < 6; i++) {
+            HEX_DIGITS['a' + i] = (byte) (10 + i);
+            HEX_DIGITS['A' + i] = (byte) (10 + i);
+        }
+    }
+
+    /**
+     * Проверка даты на ISO 8601.
+     * Даты в UTC с миллисекундами разбираются вручную, остальные форматтером
      * @param date дата
      * @return дата в формате LocalDateTime
      */
     public OffsetDateTime getIsoDate(String date) {
+        if (date == null) {
+            log.debug("Дата не указана");
+            throw new ValidationFailedException();
+        }
+        OffsetDateTime utcDate = parseUtcDate(date);
+        if (utcDate != null) return utcDate;
         try {
-            log.info("Контвертация даты из строки:" + date);
-            DateTimeFormatter formatter = DateTimeFormatter.ofPattern(FORMAT_DATE_TIME);
-            log.info("Контвертация прошла успешно");
-            return OffsetDateTime.parse(date, formatter);
+            return OffsetDateTime.parse(date, DATE_FORMATTER);
         } catch (DateTimeParseException e) {
-            log.error("Дата не соответствует формату");
+            log.debug("Дата не соответствует формату: {}", date);
             throw new ValidationFailedException();
         }
     }
 
     /**
-     * Преобразование String в UUID
+     * Проверка, что дата записана в UTC с миллисекундами
+     * @param date дата в текстовом формате
+     */
+    public void checkDateFormat(String date) {
+        if (!isUtcDate(date)) {
+            log.debug("Дата имеет не корректный формат: {}", date);
+            throw new ValidationFailedException();
+        }
+    }
+
+    /**
+     * Преобразование String в UUID.
+     * Проверка формата и разбор идут за один проход по строке
      * @param id идентификатор в String
      * @return идентификатор UUID
      */
     public UUID stringToUUID(String id) {
         if (id == null) {
-            log.error("id отсутствует");
             return null;
-        } else if (id.length() != LENGTH_UUID) {
-            log.error("id не соответствует формату UUID");
+        }
+        if (id.length() != LENGTH_UUID) {
+            log.debug("id не соответствует формату UUID: {}", id);
             throw new ValidationFailedException();
-        } else {
-            log.info("id соответствует формату UUID");
-            return UUID.fromString(id);
         }
+        if (id.charAt(8) == '-' && id.charAt(13) == '-' && id.charAt(18) == '-' && id.charAt(23) == '-') {
+            long high = hex(id, 0, 8);
+            long middle = hex(id, 9, 13);
+            long version = hex(id, 14, 18);
+            long variant = hex(id, 19, 23);
+            long node = hex(id, 24, 36);
+            if ((high | middle | version | variant | node) >= 0) {
+                return new UUID(high << 32 | middle << 16 | version, variant << 48 | node);
+            }
+        }
+        log.debug("id не соответствует формату UUID: {}", id);
+        throw new ValidationFailedException();
+    }
+
+    /**
+     * Разбор даты вида 2022-02-01T12:00:00.000Z без форматтера
+     * @param date дата в текстовом формате
+     * @return дата или null, если строка другого вида и ее должен разобрать форматтер
+     */
+    private OffsetDateTime parseUtcDate(String date) {
+        if (!isUtcDate(date) || date.charAt(19) != '.') return null;
+        int year = digits(date, 0, 4);
+        int month = digits(date, 5, 2);
+        int day = digits(date, 8, 2);
+        int hour = digits(date, 11, 2);
+        int minute = digits(date, 14, 2);
+        int second = digits(date, 17, 2);
+        int millis = digits(date, 20, 3);
+        try {
+            return OffsetDateTime.of(year, month, day, hour, minute, second, millis * 1_000_000, ZoneOffset.UTC);
+        } catch (DateTimeException e) {
+            // Несуществующие даты форматтер отклоняет или поправляет сам
+            return null;
+        }
+    }
+
+    /**
+     * Проверка вида \d{4}-\d{2}-\d{2}T\d{2}:\d{2}:\d{2}.\d{3}Z без регулярного выражения,
+     * разделитель миллисекунд может быть любым символом
+     */
+    private static boolean isUtcDate(String date) {
+        return date != null && date.length() == LENGTH_UTC_DATE
+                && digits(date, 0, 4) >= 0 && date.charAt(4) == '-'
+                && digits(date, 5, 2) >= 0 && date.charAt(7) == '-'
+                && digits(date, 8, 2) >= 0 && date.charAt(10) == 'T'
+                && digits(date, 11, 2) >= 0 && date.charAt(13) == ':'
+                && digits(date, 14, 2) >= 0 && date.charAt(16) == ':'
+                && digits(date, 17, 2) >= 0
+                && digits(date, 20, 3) >= 0 && date.charAt(23) == 'Z';
+    }
+
+    /**
+     * Число из шестнадцатеричных цифр строки, не длиннее 15 цифр
+     * @return число или -1, если среди символов есть не шестнадцатеричная цифра
+     */
+    private static long hex(String s, int from, int to) {
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            int digit = c < HEX_DIGITS.length ? HEX_DIGITS[c] : -1;
+            if (digit < 0) return -1;
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Число из десятичных цифр строки
+     * @return число или -1, если среди символов есть не цифра
+     */
+    private static int digits(String s, int from, int count) {
+        int value = 0;
+        for (int i = from; i < from + count; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            value = value * 10 + (c - '0');
+        }
+        return value;
     }
 }
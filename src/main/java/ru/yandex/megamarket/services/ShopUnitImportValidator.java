@@ -0,0 +1,184 @@
+package ru.yandex.megamarket.services;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import ru.yandex.megamarket.error.ItemError;
+import ru.yandex.megamarket.exception.ValidationFailedException;
+import ru.yandex.megamarket.model.ShopUnitImport;
+import ru.yandex.megamarket.model.ShopUnitImportBatch;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.model.ShopUnitType;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Проверка запроса на импорт за линейное время.
+ * Каждый id разбирается один раз, ошибки собираются по всем элементам, а не до первой
+ */
+@Service
+@Slf4j
+public class ShopUnitImportValidator {
+
+    private static final int VISITING = 1;
+    private static final int VISITED = 2;
+
+    private final ParserService parserService;
+
+    @Autowired
+    public ShopUnitImportValidator(ParserService parserService) {
+        this.parserService = parserService;
+    }
+
+    /**
+     * Проверка запроса, которая не требует обращения к БД: формат полей, дубликаты id,
+     * ссылки на товары как на родителей и циклы категорий внутри запроса
+     * @param shopUnitImportRequest запрос на импорт
+     * @return проверенный запрос
+     */
+    public ShopUnitImportBatch validate(ShopUnitImportRequest shopUnitImportRequest) {
+        List<ShopUnitImport> shopUnitImportList = shopUnitImportRequest.getItems();
+        if (shopUnitImportList == null || shopUnitImportList.isEmpty()) {
+            log.warn("Запрос на импорт содержит пустой список");
+            throw new ValidationFailedException();
+        }
+
+        List<ItemError> errors = new ArrayList<>();
+        OffsetDateTime updateDate = null;
+        if (shopUnitImportRequest.getUpdateDate() == null) {
+            errors.add(new ItemError(null, null, "Поле updateDate обязательно"));
+        } else {
+            try {
+                updateDate = parserService.getIsoDate(shopUnitImportRequest.getUpdateDate());
+            } catch (ValidationFailedException e) {
+                errors.add(new ItemError(null, null, "Дата обновления не соответствует формату"));
+            }
+        }
+        return validate(shopUnitImportList, updateDate, 0, errors);
+    }
+
+    /**
+     * Проверка очередной порции потокового импорта. Дубликаты и циклы ищутся только внутри порции
+     * @param shopUnitImportList элементы порции
+     * @param updateDate уже разобранная дата обновления
+     * @param firstIndex позиция первого элемента порции в потоке
+     * @return проверенная порция
+     */
+    public ShopUnitImportBatch validate(List<ShopUnitImport> shopUnitImportList, OffsetDateTime updateDate,
+                                        int firstIndex) {
+        return validate(shopUnitImportList, updateDate, firstIndex, new ArrayList<>());
+    }
+
+    private ShopUnitImportBatch validate(List<ShopUnitImport> shopUnitImportList, OffsetDateTime updateDate,
+                                         int firstIndex, List<ItemError> errors) {
+        Map<UUID, ShopUnitImport> items = new LinkedHashMap<>();
+        Map<UUID, Integer> indexes = new HashMap<>();
+        Map<UUID, UUID> parentIds = new HashMap<>();
+        for (int i = firstIndex; i < firstIndex + shopUnitImportList.size(); i++) {
+            ShopUnitImport shopUnitImport = shopUnitImportList.get(i - firstIndex);
+            String stringId = shopUnitImport.getId();
+            UUID id = parseId(stringId);
+            if (id == null) {
+                errors.add(new ItemError(i, stringId, "Поле id должно содержать UUID"));
+            } else if (items.putIfAbsent(id, shopUnitImport) != null) {
+                errors.add(new ItemError(i, stringId, "В одном запросе не может быть двух элементов с одинаковым id"));
+            } else {
+                indexes.put(id, i);
+            }
+            checkFields(i, shopUnitImport, errors);
+
+            String stringParentId = shopUnitImport.getParentId();
+            UUID parentId = stringParentId == null ? null : parseId(stringParentId);
+            if (stringParentId != null && parentId == null) {
+                errors.add(new ItemError(i, stringId, "Поле parentId должно содержать UUID"));
+            } else if (id != null && id.equals(parentId)) {
+                errors.add(new ItemError(i, stringId, "Элемент не может быть родителем самого себя"));
+            } else if (id != null && indexes.get(id) == i) {
+                parentIds.put(id, parentId);
+            }
+        }
+
+        // Родитель из этого же запроса должен быть категорией
+        for (Map.Entry<UUID, UUID> entry : parentIds.entrySet()) {
+            ShopUnitImport parent = entry.getValue() == null ? null : items.get(entry.getValue());
+            if (parent != null && parent.getType() == ShopUnitType.OFFER) {
+                errors.add(itemError(entry.getKey(), items, indexes, "ParentId должен ссылаться на категорию, а не товар"));
+            }
+        }
+        checkCycles(items, indexes, parentIds, errors);
+
+        if (!errors.isEmpty()) {
+            log.warn("Запрос на импорт не прошел проверку, ошибок: {}", errors.size());
+            throw new ValidationFailedException(errors);
+        }
+        log.debug("Схема импорта элементов валидна");
+        return new ShopUnitImportBatch(items, parentIds, updateDate);
+    }
+
+    /**
+     * Проверка полей элемента, не зависящих от других элементов
+     */
+    private void checkFields(int index, ShopUnitImport shopUnitImport, List<ItemError> errors) {
+        String id = shopUnitImport.getId();
+        if (shopUnitImport.getName() == null || shopUnitImport.getName().isBlank()) {
+            errors.add(new ItemError(index, id, "Поле name не должно быть пустым"));
+        }
+        if (shopUnitImport.getType() == null) {
+            errors.add(new ItemError(index, id, "Обязательно нужно указывать тип (Категория или товар)"));
+        } else if (shopUnitImport.getType() == ShopUnitType.OFFER
+                && (shopUnitImport.getPrice() == null || shopUnitImport.getPrice() < 0)) {
+            errors.add(new ItemError(index, id, "Цена товара должна быть больше либо равна нулю"));
+        } else if (shopUnitImport.getType() == ShopUnitType.CATEGORY && shopUnitImport.getPrice() != null) {
+            errors.add(new ItemError(index, id, "У категорий цена должна быть null"));
+        }
+    }
+
+    /**
+     * Поиск циклов по ссылкам на родителей внутри запроса. Каждый элемент проходится один раз:
+     * цепочка обрывается на элементе, который уже проверен или отсутствует в запросе
+     */
+    private void checkCycles(Map<UUID, ShopUnitImport> items, Map<UUID, Integer> indexes,
+                             Map<UUID, UUID> parentIds, List<ItemError> errors) {
+        Map<UUID, Integer> states = new HashMap<>();
+        List<UUID> chain = new ArrayList<>();
+        for (UUID id : parentIds.keySet()) {
+            UUID current = id;
+            while (current != null && parentIds.containsKey(current) && !states.containsKey(current)) {
+                states.put(current, VISITING);
+                chain.add(current);
+                current = parentIds.get(current);
+            }
+            if (current != null && states.get(current) != null && states.get(current) == VISITING) {
+                for (int i = chain.indexOf(current); i < chain.size(); i++) {
+                    errors.add(itemError(chain.get(i), items, indexes, "Категории не могут образовывать цикл"));
+                }
+            }
+            chain.forEach(visited -> states.put(visited, VISITED));
+            chain.clear();
+        }
+    }
+
+    private ItemError itemError(UUID id, Map<UUID, ShopUnitImport> items, Map<UUID, Integer> indexes,
+                                String message) {
+        return new ItemError(indexes.get(id), items.get(id).getId(), message);
+    }
+
+    /**
+     * Разбор id без исключений
+     * @return UUID или null, если строка не является UUID
+     */
+    private UUID parseId(String id) {
+        if (id == null || id.isBlank()) return null;
+        try {
+            return parserService.stringToUUID(id);
+        } catch (ValidationFailedException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
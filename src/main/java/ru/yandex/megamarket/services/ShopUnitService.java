@@ -1,31 +1,104 @@
 package ru.yandex.megamarket.services;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.SerializedString;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+import ru.yandex.megamarket.error.ItemError;
 import ru.yandex.megamarket.exception.ItemNotFoundException;
+import ru.yandex.megamarket.exception.LockSetChangedException;
 import ru.yandex.megamarket.exception.ValidationFailedException;
 import ru.yandex.megamarket.model.*;
+import ru.yandex.megamarket.repository.ShopUnitJdbcRepo;
 import ru.yandex.megamarket.repository.ShopUnitRepo;
-
+import ru.yandex.megamarket.repository.ShopUnitStatisticRepo;
+
+import javax.persistence.EntityManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.time.Instant;
 import java.time.OffsetDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 @Service
 @Slf4j
 public class ShopUnitService {
 
+    /**
+     * Сколько раз повторять изменение, если дерево успело измениться до захвата блокировок
+     */
+    private static final int MAX_LOCK_ATTEMPTS = 5;
+
     private final ShopUnitRepo shopUnitRepo;
+    private final ShopUnitJdbcRepo shopUnitJdbcRepo;
+    private final ShopUnitStatisticRepo shopUnitStatisticRepo;
     private final ParserService parserService;
+    private final ShopUnitImportValidator shopUnitImportValidator;
+    private final CatalogCacheService catalogCacheService;
+    private final CatalogEngine catalogEngine;
+    private final CatalogMetricsService catalogMetricsService;
+    private final SubtreeLockService subtreeLockService;
+    private final TransactionTemplate transactionTemplate;
+
+    /**
+     * Чтения, которые обращаются к БД несколькими запросами, занимают одно соединение на весь ответ
+     */
+    private final TransactionTemplate readOnlyTransactionTemplate;
+    private final EntityManager entityManager;
+    private final ObjectMapper objectMapper;
+
+    /**
+     * Размер порции потокового импорта
+     */
+    private final int bulkChunkSize;
+
+    /**
+     * Размер страницы /nodes по умолчанию и наибольший допустимый
+     */
+    private final int defaultPageSize;
+    private final int maxPageSize;
 
     @Autowired
-    public ShopUnitService(ShopUnitRepo shopUnitRepo, ParserService parserService) {
+    public ShopUnitService(ShopUnitRepo shopUnitRepo, ShopUnitJdbcRepo shopUnitJdbcRepo,
+                           ShopUnitStatisticRepo shopUnitStatisticRepo, ParserService parserService,
+                           ShopUnitImportValidator shopUnitImportValidator, CatalogCacheService catalogCacheService,
+                           CatalogEngine catalogEngine, CatalogMetricsService catalogMetricsService, SubtreeLockService subtreeLockService,
+                           PlatformTransactionManager transactionManager, EntityManager entityManager,
+                           ObjectMapper objectMapper, @Value("${imports.bulk.chunk-size}") int bulkChunkSize,
+                           @Value("${nodes.page.default-size}") int defaultPageSize,
+                           @Value("${nodes.page.max-size}") int maxPageSize) {
         this.shopUnitRepo = shopUnitRepo;
+        this.shopUnitJdbcRepo = shopUnitJdbcRepo;
+        this.shopUnitStatisticRepo = shopUnitStatisticRepo;
         this.parserService = parserService;
+        this.shopUnitImportValidator = shopUnitImportValidator;
+        this.catalogCacheService = catalogCacheService;
+        this.catalogEngine = catalogEngine;
+        this.catalogMetricsService = catalogMetricsService;
+        this.subtreeLockService = subtreeLockService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate = new TransactionTemplate(transactionManager);
+        this.readOnlyTransactionTemplate.setReadOnly(true);
+        this.entityManager = entityManager;
+        this.objectMapper = objectMapper;
+        this.bulkChunkSize = bulkChunkSize;
+        this.defaultPageSize = defaultPageSize;
+        this.maxPageSize = maxPageSize;
     }
 
     /**
@@ -33,243 +106,515 @@ public class ShopUnitService {
      * @param shopUnitImportRequest запрос со списком товаров и/или категорий
      */
     public void importShopUnitItems(ShopUnitImportRequest shopUnitImportRequest) {
-        validateShopUnitImportRequest(shopUnitImportRequest);
-        List<ShopUnitImport> shopUnitImportList = shopUnitImportRequest.getItems();
-        validateShopUnitImportList(shopUnitImportList);
+        Timer.Sample operation = catalogMetricsService.startOperation();
+        int items = shopUnitImportRequest.getItems() == null ? 0 : shopUnitImportRequest.getItems().size();
+        AtomicInteger changed = new AtomicInteger();
+        AtomicInteger skipped = new AtomicInteger();
+        boolean success = false;
+        try {
+            Timer.Sample phase = catalogMetricsService.startPhase();
+            ShopUnitImportBatch batch = shopUnitImportValidator.validate(shopUnitImportRequest);
+            catalogMetricsService.stopPhase(phase, CatalogMetricsService.IMPORT, "validate");
+            catalogMetricsService.recordItems(CatalogMetricsService.IMPORT, batch.getItems().size());
+
+            // Элементы и родители из запроса загружаются из БД одним запросом
+            Set<UUID> ids = batch.getAffectedIds();
+            runLocked(CatalogMetricsService.IMPORT, ids, () -> changed.set(saveImport(batch, ids, skipped)));
+            catalogMetricsService.recordSkipped(CatalogMetricsService.IMPORT, skipped.get());
+            success = true;
+        } finally {
+            long sqlStatements = catalogMetricsService.getSqlStatements();
+            long duration = catalogMetricsService.stopOperation(operation, CatalogMetricsService.IMPORT);
+            // Одно событие на импорт вместо строки на каждый элемент
+            if (log.isInfoEnabled()) {
+                log.info("Импорт: status={} items={} changed={} skipped={} sql={} durationMs={}",
+                        success ? "ok" : "failed", items, changed.get(), skipped.get(), sqlStatements,
+                        TimeUnit.NANOSECONDS.toMillis(duration));
+            }
+        }
+    }
 
-        OffsetDateTime updateDate = parserService.getIsoDate(shopUnitImportRequest.getUpdateDate());
-        List<ShopUnit> shopUnitsForUpdateInBD = new ArrayList<>();
+    /**
+     * Применение импорта к БД. Выполняется в транзакции под блокировками затронутых элементов
+     * @param batch проверенный запрос на импорт
+     * @param ids id элементов и родителей из импорта
+     * @param skipped количество элементов импорта, совпавших с сохраненными
+     * @return количество сохраненных элементов вместе с обновленными категориями
+     */
+    private int saveImport(ShopUnitImportBatch batch, Set<UUID> ids, AtomicInteger skipped) {
+        OffsetDateTime updateDate = batch.getUpdateDate();
+        Timer.Sample phase = catalogMetricsService.startPhase();
+        Map<UUID, ShopUnit> shopUnits = new HashMap<>();
+        shopUnitRepo.findAllById(ids).forEach(shopUnit -> shopUnits.put(shopUnit.getId(), shopUnit));
+        Set<ShopUnit> shopUnitsForUpdateInBD = new LinkedHashSet<>();
+
+        prepareShopUnits(batch, shopUnits);
+        Map<UUID, StoredState> storedStates = new HashMap<>();
+        for (ShopUnit shopUnit : shopUnits.values()) {
+            if (!shopUnit.isNew()) storedStates.put(shopUnit.getId(), new StoredState(shopUnit));
+        }
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.IMPORT, "load");
+
+        phase = catalogMetricsService.startPhase();
+
+        // Сначала все элементы отсоединяются от прежних родителей: цепочка прежних родителей
+        // не должна проходить через элементы, которые в этом же импорте уже перенесены.
+        // Отсоединенный элемент уносит с собой свое поддерево, поэтому суммы остаются согласованными
+        for (UUID id : batch.getItems().keySet()) {
+            ShopUnit shopUnit = shopUnits.get(id);
+            // Вычитаем старый вклад элемента из цен прежних родительских категорий
+            updateAncestors(shopUnit.getParentId(), -shopUnit.getPriceSum(), -shopUnit.getOfferCount(),
+                    updateDate, shopUnits, shopUnitsForUpdateInBD);
+            shopUnit.setParentId(null);
+        }
 
-        for (ShopUnitImport shopUnitImport : shopUnitImportList) {
-            Optional<ShopUnit> shopUnitOp = shopUnitRepo.findById(parserService.stringToUUID(shopUnitImport.getId()));
-            if (shopUnitOp.isPresent()) {
-                ShopUnit shopUnit = shopUnitOp.get();
-                if (shopUnit.getType().equals(shopUnitImport.getType())) {
-                    shopUnit.setName(shopUnitImport.getName());
-                    shopUnit.setDate(updateDate);
-                    shopUnit.setPrice(shopUnitImport.getPrice());
-
-                    UUID parentId = parserService.stringToUUID(shopUnitImport.getParentId());
-                    if (parentId != null) checkParentId(parentId, shopUnitImportList);
-                    shopUnit.setParentId(parentId);
-                    shopUnitsForUpdateInBD.add(shopUnit);
-                } else {
-                    log.warn("Изменение типа элемента с товара на категорию или с категории на товар не допускается");
-                    throw new ValidationFailedException();
-                }
-            } else {
-                ShopUnit shopUnit = new ShopUnit.Builder()
-                        .withId(parserService.stringToUUID(shopUnitImport.getId()))
-                        .withName(shopUnitImport.getName())
-                        .withParentId(parserService.stringToUUID(shopUnitImport.getParentId()))
-                        .withType(shopUnitImport.getType())
-                        .build();
-                if (shopUnitImport.getType().equals(ShopUnitType.OFFER)) {
-                    shopUnit.setPrice(shopUnitImport.getPrice());
-                }
+        // Затем элементы присоединяются к новым родителям. Цепочка новых родителей состоит только
+        // из итоговых связей, поэтому без циклов: их исключила проверка checkCycles
+        for (Map.Entry<UUID, ShopUnitImport> entry : batch.getItems().entrySet()) {
+            ShopUnitImport shopUnitImport = entry.getValue();
+            ShopUnit shopUnit = shopUnits.get(entry.getKey());
+
+            shopUnit.setName(shopUnitImport.getName());
+            shopUnit.setDate(updateDate);
+            shopUnit.setParentId(batch.getParentId(entry.getKey()));
+            if (shopUnit.getType().equals(ShopUnitType.OFFER)) {
+                shopUnit.setPrice(shopUnitImport.getPrice());
+                shopUnit.setPriceSum(shopUnitImport.getPrice());
+                shopUnit.setOfferCount(1);
+                // Обновление цены не означает ее изменение, поэтому дата ставится при каждом импорте товара
+                shopUnit.setLastPriceUpdatedDate(updateDate);
+            }
+            shopUnitsForUpdateInBD.add(shopUnit);
 
-                UUID parentId = parserService.stringToUUID(shopUnitImport.getParentId());
-                if (parentId != null) checkParentId(parentId, shopUnitImportList);
-                shopUnit.setDate(updateDate);
+            // Добавляем новый вклад элемента в цены новых родительских категорий
+            updateAncestors(shopUnit.getParentId(), shopUnit.getPriceSum(), shopUnit.getOfferCount(),
+                    updateDate, shopUnits, shopUnitsForUpdateInBD);
+        }
+
+        // Ответы всех элементов импорта и их прежних и новых предков сбрасываются из кэша, даже если
+        // сам элемент не изменился: в JSON категории есть ее дети, которых StoredState не сравнивает
+        Set<UUID> changedIds = new LinkedHashSet<>();
+        shopUnitsForUpdateInBD.forEach(shopUnit -> changedIds.add(shopUnit.getId()));
+
+        // Элементы, которые совпали с сохраненными вместе с датой, не пишутся и не попадают в историю.
+        // Повторный импорт с новой датой меняет date, поэтому обновлением остается, как требует openapi.yaml
+        int unchangedItems = 0;
+        for (Iterator<ShopUnit> iterator = shopUnitsForUpdateInBD.iterator(); iterator.hasNext(); ) {
+            ShopUnit shopUnit = iterator.next();
+            StoredState storedState = storedStates.get(shopUnit.getId());
+            if (storedState != null && storedState.matches(shopUnit)) {
+                iterator.remove();
+                if (batch.getItems().containsKey(shopUnit.getId())) unchangedItems++;
+            }
+        }
+        skipped.set(unchangedItems);
+
+        // История: импортированные элементы и все категории, у которых обновились цена и дата
+        List<ShopUnitStatisticUnit> history = new ArrayList<>();
+        shopUnitsForUpdateInBD.forEach(shopUnit -> history.add(toStatisticUnit(shopUnit)));
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.IMPORT, "aggregate");
+
+        // Пересчет материализованных путей по новым родителям. Поддеревья перенесенных категорий
+        // обновляются от самых глубоких, чтобы перенос вложенной категории не затирался переносом внешней
+        phase = catalogMetricsService.startPhase();
+        List<String[]> movedSubtrees = new ArrayList<>();
+        Map<UUID, String> paths = new HashMap<>();
+        shopUnits.values().forEach(shopUnit -> resolvePath(shopUnit, shopUnits, paths));
+        checkDepth(shopUnits.values(), paths);
+        for (ShopUnit shopUnit : shopUnits.values()) {
+            String oldPath = shopUnit.getPath();
+            String newPath = paths.get(shopUnit.getId());
+            if (!newPath.equals(oldPath)) {
+                if (oldPath != null && shopUnit.getType().equals(ShopUnitType.CATEGORY)) {
+                    movedSubtrees.add(new String[]{oldPath, newPath});
+                }
+                shopUnit.setPath(newPath);
                 shopUnitsForUpdateInBD.add(shopUnit);
             }
         }
-        // сохранение в базу данных из импорта
-        saveShopUnitList(shopUnitsForUpdateInBD);
+        movedSubtrees.sort(Comparator.comparingInt((String[] move) -> move[0].length()).reversed());
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.IMPORT, "paths");
+
+        // сохранение в базу данных импорта и обновленных категорий
+        phase = catalogMetricsService.startPhase();
+        saveShopUnitList(new ArrayList<>(shopUnitsForUpdateInBD));
+        for (String[] move : movedSubtrees) {
+            shopUnitRepo.moveSubtree(move[0], move[1]);
+        }
+        shopUnitStatisticRepo.saveAll(history);
+        // Пакетные вставки отправляются здесь, а не при фиксации, чтобы попасть в замер этапа
+        entityManager.flush();
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.IMPORT, "save");
+
+        // Каталог в памяти обновляется после фиксации раньше сброса кэша,
+        // чтобы ответ, собранный из прежнего состояния, не попал в кэш нового поколения
+        catalogEngine.putAfterCommit(shopUnitsForUpdateInBD);
+
+        // сброс кэша импортированных элементов, их прежних и новых предков и элементов с новыми путями
+        shopUnitsForUpdateInBD.forEach(shopUnit -> changedIds.add(shopUnit.getId()));
+        catalogCacheService.invalidate(new ArrayList<>(changedIds));
+        return shopUnitsForUpdateInBD.size();
+    }
 
-        // обновление списков дочерних товаров\категорий
-        addChildren(shopUnitsForUpdateInBD, updateDate);
+    /**
+     * Потоковый импорт NDJSON, по одному элементу ShopUnitImport в строке.
+     * Элементы проверяются и пишутся в БД порциями, поэтому память не зависит от размера потока.
+     * Родитель должен идти в потоке раньше своих детей или в той же порции.
+     * Средние цены категорий пересчитываются один раз в конце. Импорт идет одной транзакцией
+     * и на это время блокирует все остальные изменения каталога
+     * @param inputStream поток элементов
+     * @param updateDate время обновления всех элементов потока
+     * @return количество импортированных элементов
+     */
+    public int importShopUnitStream(InputStream inputStream, String updateDate) {
+        Timer.Sample operation = catalogMetricsService.startOperation();
+        Integer count = null;
+        try {
+            OffsetDateTime date = parserService.getIsoDate(updateDate);
+            Timer.Sample phase = catalogMetricsService.startPhase();
+            SubtreeLockService.SubtreeLock lock = subtreeLockService.lockAll();
+            try {
+                catalogMetricsService.stopPhase(phase, CatalogMetricsService.BULK_IMPORT, "lock");
+                count = transactionTemplate.execute(status -> saveStream(inputStream, date));
+                // Каталог в памяти загружается заново, пока изменения еще заблокированы
+                catalogEngine.reload();
+            } finally {
+                lock.close();
+            }
+            catalogMetricsService.recordItems(CatalogMetricsService.BULK_IMPORT, count == null ? 0 : count);
+        } finally {
+            long sqlStatements = catalogMetricsService.getSqlStatements();
+            long duration = catalogMetricsService.stopOperation(operation, CatalogMetricsService.BULK_IMPORT);
+            if (log.isInfoEnabled()) {
+                log.info("Потоковый импорт: status={} items={} sql={} durationMs={}",
+                        count != null ? "ok" : "failed", count == null ? 0 : count, sqlStatements,
+                        TimeUnit.NANOSECONDS.toMillis(duration));
+            }
+        }
+        return count == null ? 0 : count;
+    }
 
-        // обновление цены категорий
-        updatePriceOfCategory(updateDate);
+    private int saveStream(InputStream inputStream, OffsetDateTime updateDate) {
+        Set<UUID> changedCategoryIds = new HashSet<>();
+        int count = 0;
+        try (JsonParser parser = objectMapper.getFactory().createParser(inputStream)) {
+            List<ShopUnitImport> chunk = new ArrayList<>(bulkChunkSize);
+            while (parser.nextToken() != null) {
+                chunk.add(objectMapper.readValue(parser, ShopUnitImport.class));
+                if (chunk.size() == bulkChunkSize) {
+                    saveChunk(shopUnitImportValidator.validate(chunk, updateDate, count), changedCategoryIds);
+                    count += chunk.size();
+                    chunk.clear();
+                }
+            }
+            if (!chunk.isEmpty()) {
+                saveChunk(shopUnitImportValidator.validate(chunk, updateDate, count), changedCategoryIds);
+                count += chunk.size();
+            }
+        } catch (JsonProcessingException e) {
+            log.warn("Строка {} потокового импорта не является элементом импорта", count + 1);
+            throw new ValidationFailedException();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (count == 0) {
+            log.warn("Запрос на импорт содержит пустой список");
+            throw new ValidationFailedException();
+        }
 
-        log.info("Вставка или обновление прошли успешно");
+        updateCategories(new ArrayList<>(changedCategoryIds), updateDate);
+        // До повторной загрузки каталога в память чтения идут в БД
+        catalogEngine.resetAfterCommit();
+        catalogCacheService.invalidateAll();
+        return count;
     }
 
     /**
-     * Проверка списка shopUnitImportRequest
-     * @param shopUnitImportRequest список shopUnitImportRequest
+     * Запись порции потокового импорта без пересчета цен категорий.
+     * После записи контекст персистентности очищается, чтобы не накапливать элементы
+     * @param batch проверенная порция
+     * @param changedCategoryIds категории, цены которых нужно пересчитать в конце импорта
      */
-    public void validateShopUnitImportRequest(ShopUnitImportRequest shopUnitImportRequest) {
-        List<ShopUnitImport> shopUnitImportList = shopUnitImportRequest.getItems();
-        if (shopUnitImportList == null || shopUnitImportList.size() < 1) {
-            log.warn("Запрос на импорт содержит пустой список");
-            throw new ValidationFailedException();
+    private void saveChunk(ShopUnitImportBatch batch, Set<UUID> changedCategoryIds) {
+        Timer.Sample phase = catalogMetricsService.startPhase();
+        Map<UUID, ShopUnit> shopUnits = new HashMap<>();
+        shopUnitRepo.findAllById(batch.getAffectedIds()).forEach(shopUnit -> shopUnits.put(shopUnit.getId(), shopUnit));
+        prepareShopUnits(batch, shopUnits);
+
+        List<ShopUnit> shopUnitsForUpdateInBD = new ArrayList<>();
+        List<ShopUnitStatisticUnit> history = new ArrayList<>();
+        for (Map.Entry<UUID, ShopUnitImport> entry : batch.getItems().entrySet()) {
+            ShopUnitImport shopUnitImport = entry.getValue();
+            ShopUnit shopUnit = shopUnits.get(entry.getKey());
+            // Прежние родители тоже пересчитываются, если элемент переносится
+            changedCategoryIds.addAll(shopUnit.getAncestorIds());
+
+            shopUnit.setName(shopUnitImport.getName());
+            shopUnit.setDate(batch.getUpdateDate());
+            shopUnit.setParentId(batch.getParentId(entry.getKey()));
+            if (shopUnit.getType().equals(ShopUnitType.OFFER)) {
+                shopUnit.setPrice(shopUnitImport.getPrice());
+                shopUnit.setPriceSum(shopUnitImport.getPrice());
+                shopUnit.setOfferCount(1);
+                shopUnit.setLastPriceUpdatedDate(batch.getUpdateDate());
+                history.add(toStatisticUnit(shopUnit));
+            } else {
+                changedCategoryIds.add(shopUnit.getId());
+            }
+            shopUnitsForUpdateInBD.add(shopUnit);
         }
 
-        for (ShopUnitImport shopUnitImport : shopUnitImportList) {
-            long count = shopUnitImportList.stream().filter(item -> shopUnitImport.getId().equals(item.getId())).count();
-            if (count > 1) {
-                log.warn("В одном запросе не может быть двух элементов с одинаковым id");
-                throw new ValidationFailedException();
+        List<String[]> movedSubtrees = new ArrayList<>();
+        Map<UUID, String> paths = new HashMap<>();
+        shopUnitsForUpdateInBD.forEach(shopUnit -> resolvePath(shopUnit, shopUnits, paths));
+        checkDepth(shopUnitsForUpdateInBD, paths);
+        for (ShopUnit shopUnit : shopUnitsForUpdateInBD) {
+            String oldPath = shopUnit.getPath();
+            String newPath = paths.get(shopUnit.getId());
+            if (oldPath != null && !newPath.equals(oldPath) && shopUnit.getType().equals(ShopUnitType.CATEGORY)) {
+                movedSubtrees.add(new String[]{oldPath, newPath});
             }
+            shopUnit.setPath(newPath);
+            changedCategoryIds.addAll(shopUnit.getAncestorIds());
+        }
+        movedSubtrees.sort(Comparator.comparingInt((String[] move) -> move[0].length()).reversed());
+
+        saveShopUnitList(shopUnitsForUpdateInBD);
+        for (String[] move : movedSubtrees) {
+            shopUnitRepo.moveSubtree(move[0], move[1]);
+        }
+        shopUnitStatisticRepo.saveAll(history);
+        entityManager.flush();
+        entityManager.clear();
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.BULK_IMPORT, "chunk");
+    }
+
+    /**
+     * Пересчет цен и дат категорий по их поддеревьям и запись их истории, порциями по bulkChunkSize
+     * @param categoryIds категории, затронутые импортом
+     * @param updateDate дата обновления
+     */
+    private void updateCategories(List<UUID> categoryIds, OffsetDateTime updateDate) {
+        Timer.Sample phase = catalogMetricsService.startPhase();
+        for (int from = 0; from < categoryIds.size(); from += bulkChunkSize) {
+            List<UUID> ids = categoryIds.subList(from, Math.min(from + bulkChunkSize, categoryIds.size()));
+            shopUnitJdbcRepo.updateAggregates(ids, updateDate);
+
+            List<ShopUnitStatisticUnit> history = new ArrayList<>(ids.size());
+            shopUnitRepo.findAllById(ids).forEach(category -> history.add(toStatisticUnit(category)));
+            shopUnitStatisticRepo.saveAll(history);
+            entityManager.flush();
+            entityManager.clear();
         }
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.BULK_IMPORT, "categories");
     }
 
     /**
-     * Проверка списка shopUnitImportList
-     * @param shopUnitImportList список shopUnitImportList
+     * Создание новых элементов и загрузка предков с проверками, которым нужны данные из БД.
+     * Новые элементы создаются без родителя и с пустой суммой цен,
+     * чтобы дочерние элементы из этого же импорта могли к ним привязаться
+     * @param batch проверенный запрос на импорт
+     * @param shopUnits загруженные из БД элементы и родители из запроса, дополняются новыми элементами и предками
      */
-    public void validateShopUnitImportList(List<ShopUnitImport> shopUnitImportList) {
-        boolean isValidated = true;
-        for (ShopUnitImport shopUnitImport : shopUnitImportList) {
-            if (shopUnitImport.getId() == null || shopUnitImport.getId().trim().equals("")) {
-                log.warn("Поле id не должно быть пустым");
-                isValidated = false;
-                break;
-            }
-            if (shopUnitImport.getName() == null
-                    || shopUnitImport.getName().trim().equals("")) {
-                log.warn("Поле name не должно быть пустым");
-                isValidated = false;
-                break;
-            }
-            if (shopUnitImport.getType().equals(ShopUnitType.OFFER)
-                    && (shopUnitImport.getPrice() == null || shopUnitImport.getPrice() < 0)) {
-                log.warn("Цена товара должна быть больше либо равна нулю");
-                isValidated = false;
-                break;
-            }
-            if (shopUnitImport.getType().equals(ShopUnitType.CATEGORY)
-                    && shopUnitImport.getPrice() != null) {
-                log.warn("У категорий цена должна быть null");
-                isValidated = false;
-                break;
-            }
-            if (shopUnitImport.getType() == null) {
-                log.warn("Обязательно нужно указывать тип (Категория или товар)");
-                isValidated = false;
-                break;
+    private void prepareShopUnits(ShopUnitImportBatch batch, Map<UUID, ShopUnit> shopUnits) {
+        List<ItemError> errors = new ArrayList<>();
+        for (Map.Entry<UUID, ShopUnitImport> entry : batch.getItems().entrySet()) {
+            ShopUnit shopUnit = shopUnits.get(entry.getKey());
+            if (shopUnit == null) {
+                shopUnits.put(entry.getKey(), new ShopUnit.Builder()
+                        .withId(entry.getKey())
+                        .withType(entry.getValue().getType())
+                        .build());
+            } else if (!shopUnit.getType().equals(entry.getValue().getType())) {
+                errors.add(new ItemError(null, entry.getValue().getId(),
+                        "Изменение типа элемента с товара на категорию или с категории на товар не допускается"));
             }
         }
+        checkParents(batch, shopUnits, errors);
+        throwIfInvalid(errors);
 
-        if (isValidated) {
-            log.info("Схема импорта элементов валидна");
-        } else throw new ValidationFailedException();
+        loadAncestors(shopUnits);
+        checkLocked(shopUnits.keySet());
+        checkCycles(batch, shopUnits, errors);
+        throwIfInvalid(errors);
     }
 
     /**
-     * Обновление средней цены категорий
-     * @param updateDate дата обновления в БД
+     * Выполнение изменения в транзакции под блокировками всех элементов на пути от корня до изменяемых.
+     * Блокировки снимаются после фиксации транзакции. Если дерево изменилось между чтением путей
+     * и захватом блокировок, изменение повторяется с расширенным набором блокировок,
+     * а последняя попытка блокирует весь каталог, чтобы частые переносы не оставили изменение без блокировок
+     * @param operation название операции для метрик
+     * @param ids изменяемые элементы
+     * @param change изменение, которое проверяет свои блокировки через checkLocked
      */
-    private void updatePriceOfCategory(OffsetDateTime updateDate) {
-        log.info("Расчет средней цены для категорий");
-        List<ShopUnit> shopUnitList = shopUnitRepo.findAllByType(ShopUnitType.CATEGORY);
-        for (ShopUnit shopUnit : shopUnitList) {
-            Long oldPrice = shopUnit.getPrice();
-            Long updatePrice = getAveragePriceFromList(shopUnit.getChildren());
-            shopUnit.setPrice(updatePrice);
-            if (oldPrice != null && updatePrice != null && !oldPrice.equals(updatePrice)) {
-                shopUnit.setDate(updateDate);
+    private void runLocked(String operation, Set<UUID> ids, Runnable change) {
+        Set<UUID> lockIds = new HashSet<>(ids);
+        shopUnitRepo.findPathsByIdIn(ids).forEach(path -> lockIds.addAll(ShopUnit.parsePath(path)));
+
+        for (int attempt = 1; ; attempt++) {
+            Timer.Sample phase = catalogMetricsService.startPhase();
+            SubtreeLockService.SubtreeLock lock = attempt < MAX_LOCK_ATTEMPTS ? subtreeLockService.lock(lockIds)
+                    : subtreeLockService.lockAll();
+            try {
+                catalogMetricsService.stopPhase(phase, operation, "lock");
+                transactionTemplate.executeWithoutResult(status -> change.run());
+                return;
+            } catch (LockSetChangedException e) {
+                if (attempt >= MAX_LOCK_ATTEMPTS) throw e;
+                log.warn("Дерево изменилось до захвата блокировок, попытка {}", attempt);
+                lockIds.addAll(e.getIds());
+            } finally {
+                lock.close();
             }
         }
-        saveShopUnitList(shopUnitList);
     }
 
     /**
-     * Получение средней цены для категории
-     * @param children Список всех дочерних товаров/категорий
-     * @return Long средняя цена всех дочерних товаров(включая товары подкатегорий)
+     * Проверка, что все затрагиваемые элементы заблокированы текущим потоком
+     * @param ids затрагиваемые элементы
      */
-    public Long getAveragePriceFromList(List<ShopUnit> children) {
-        if (children.isEmpty()) {
-            return null;
+    private void checkLocked(Collection<UUID> ids) {
+        List<UUID> notLockedIds = new ArrayList<>();
+        for (UUID id : ids) {
+            if (!subtreeLockService.isLocked(id)) notLockedIds.add(id);
         }
-
-        List<Long> listPrice = getPricesFromChildren(children);
-        double averagePrice = listPrice.stream()
-                .mapToLong(Long::longValue)
-                .summaryStatistics().getAverage();
-        return Double.valueOf(averagePrice).longValue();
+        if (!notLockedIds.isEmpty()) throw new LockSetChangedException(notLockedIds);
     }
 
     /**
-     * Получение списка цен по категории
-     * @param children Список дочерних товаров/категорий
-     * @return Список цен всех дочерних товаров данной категории (включая товары подкатегорий)
+     * Изменение суммы цен и количества товаров у цепочки родительских категорий
+     * @param parentId id родительской категории, с которой начинается цепочка
+     * @param priceSumDelta изменение суммы цен
+     * @param offerCountDelta изменение количества товаров
+     * @param updateDate дата обновления, null если дату категорий менять не нужно
+     * @param shopUnits уже загруженные элементы
+     * @param changedShopUnits множество измененных элементов для сохранения
      */
-    public List<Long> getPricesFromChildren(List<ShopUnit> children) {
-        List<Long> childrenPrices = new ArrayList<>();
-
-        for (ShopUnit child : children) {
-            if (child.getType().equals(ShopUnitType.OFFER)) {
-                childrenPrices.add(child.getPrice());
-            } else if (!child.getChildren().isEmpty()) {
-                List<Long> childrenPricesOfSubcategory = getPricesFromChildren(child.getChildren());
-                childrenPrices.addAll(childrenPricesOfSubcategory);
-            }
+    private void updateAncestors(UUID parentId, long priceSumDelta, long offerCountDelta, OffsetDateTime updateDate,
+                                 Map<UUID, ShopUnit> shopUnits, Set<ShopUnit> changedShopUnits) {
+        UUID ancestorId = parentId;
+        while (ancestorId != null && shopUnits.containsKey(ancestorId)) {
+            ShopUnit ancestor = shopUnits.get(ancestorId);
+            ancestor.addToAggregate(priceSumDelta, offerCountDelta);
+            if (updateDate != null) ancestor.setDate(updateDate);
+            changedShopUnits.add(ancestor);
+            ancestorId = ancestor.getParentId();
         }
-        return childrenPrices;
     }
 
     /**
-     * Проверка parentId (относится к категории или нет)
-     * @param parentId id родительской категории
-     * @param shopUnitImportList список для импорта
+     * Дозагрузка всех предков уже загруженных элементов одним запросом по материализованным путям
+     * @param shopUnits загруженные элементы, в которые добавляются предки
      */
-    private void checkParentId(UUID parentId, List<ShopUnitImport> shopUnitImportList) {
-        boolean isCategory = false;
-        Optional<ShopUnit> shopUnitOp = shopUnitRepo.findById(parentId);
-        if (shopUnitOp.isPresent()
-                && shopUnitOp.get().getType().equals(ShopUnitType.CATEGORY)) {
-            isCategory = true;
-        }
-        for (ShopUnitImport item : shopUnitImportList) {
-            if (parentId.equals(parserService.stringToUUID(item.getId()))
-                    && item.getType().equals(ShopUnitType.CATEGORY)) {
-                isCategory = true;
-                break;
+    private void loadAncestors(Map<UUID, ShopUnit> shopUnits) {
+        Set<UUID> missingIds = new HashSet<>();
+        for (ShopUnit shopUnit : shopUnits.values()) {
+            for (UUID ancestorId : shopUnit.getAncestorIds()) {
+                if (!shopUnits.containsKey(ancestorId)) missingIds.add(ancestorId);
             }
         }
-        if (!isCategory) {
-            log.warn("ParentId должен ссылаться на категорию, а не товар");
-            throw new ValidationFailedException();
+        if (!missingIds.isEmpty()) {
+            shopUnitRepo.findAllById(missingIds).forEach(ancestor -> shopUnits.put(ancestor.getId(), ancestor));
         }
     }
 
     /**
-     * Добавление дочерних объектов
-     * @param shopUnitsForUpdateInBD Список для обновления
-     * @param updateDate дата обновления
+     * Вычисление материализованного пути элемента по цепочке родителей
+     * @param shopUnit элемент
+     * @param shopUnits загруженные элементы вместе со всеми предками
+     * @param paths уже вычисленные пути
+     * @return путь элемента
      */
-    private void addChildren(List<ShopUnit> shopUnitsForUpdateInBD, OffsetDateTime updateDate) {
-        log.info("Добавление дочерних объектов");
-        for (ShopUnit shopUnit : shopUnitsForUpdateInBD) {
-            addChildrenToItem(shopUnit, updateDate);
-            saveShopUnit(shopUnit);
+    private String resolvePath(ShopUnit shopUnit, Map<UUID, ShopUnit> shopUnits, Map<UUID, String> paths) {
+        String path = paths.get(shopUnit.getId());
+        if (path == null) {
+            ShopUnit parent = shopUnit.getParentId() == null ? null : shopUnits.get(shopUnit.getParentId());
+            path = (parent == null ? "" : resolvePath(parent, shopUnits, paths))
+                    + shopUnit.getId() + ShopUnit.PATH_SEPARATOR;
+            paths.put(shopUnit.getId(), path);
         }
+        return path;
     }
 
     /**
-     * Добавление дочерних объектов по одному элементу
-     * @param shopUnit   объект из импорта для сохранения в БД
-     * @param updateDate дата обновления в БД
+     * Проверка, что новые пути элементов и поддеревьев перенесенных категорий не глубже ShopUnit.MAX_DEPTH.
+     * Вызывается до записи путей в элементы, поэтому глубина поддерева берется по путям из БД.
+     * Если в одном импорте потомок уходит из переносимой категории, глубина ее поддерева оценивается с запасом
+     * @param shopUnits элементы, пути которых могли измениться
+     * @param paths новые пути элементов
      */
-    private void addChildrenToItem(ShopUnit shopUnit, OffsetDateTime updateDate) {
-        if (shopUnit.getType().equals(ShopUnitType.OFFER)) {
-            log.info("Обновление OFFER " + shopUnit.getName());
-            shopUnit.setChildren(null);
-        }
-
-        if (shopUnit.getType().equals(ShopUnitType.CATEGORY)) {
-            log.info("Обновление категории " + shopUnit.getName());
-            Optional<ShopUnit> shopUnitOp = shopUnitRepo.findById(shopUnit.getId());
-            if (shopUnitOp.isPresent()) {
-                List<ShopUnit> childrenFromBD = new ArrayList<>(shopUnitRepo.findAllByParentId(shopUnit.getId())); // список детей из БД
-                shopUnit.setChildren(childrenFromBD);
+    private void checkDepth(Collection<ShopUnit> shopUnits, Map<UUID, String> paths) {
+        List<ItemError> errors = new ArrayList<>();
+        for (ShopUnit shopUnit : shopUnits) {
+            String oldPath = shopUnit.getPath();
+            String newPath = paths.get(shopUnit.getId());
+            if (newPath.equals(oldPath)) continue;
+            int maxPathLength = newPath.length();
+            if (oldPath != null && shopUnit.getType().equals(ShopUnitType.CATEGORY)) {
+                maxPathLength += shopUnitRepo.findMaxPathLength(oldPath) - oldPath.length();
+            }
+            if (maxPathLength > ShopUnit.MAX_PATH_LENGTH) {
+                errors.add(new ItemError(null, shopUnit.getId().toString(),
+                        "Глубина вложенности не может превышать " + ShopUnit.MAX_DEPTH));
             }
         }
+        throwIfInvalid(errors);
+    }
 
-        if (shopUnit.getParentId() != null) {
-            Optional<ShopUnit> parentOp = shopUnitRepo.findById(shopUnit.getParentId());
-            if (parentOp.isPresent()) {
-                ShopUnit parent = parentOp.get();
-                parent.setDate(updateDate);
-                addChildrenToItem(parent, updateDate);
+    /**
+     * Проверка, что родители элементов импорта существуют и являются категориями
+     * @param batch проверенный запрос на импорт
+     * @param shopUnits элементы из БД и импорта
+     * @param errors ошибки по элементам
+     */
+    private void checkParents(ShopUnitImportBatch batch, Map<UUID, ShopUnit> shopUnits, List<ItemError> errors) {
+        for (Map.Entry<UUID, ShopUnitImport> entry : batch.getItems().entrySet()) {
+            UUID parentId = batch.getParentId(entry.getKey());
+            if (parentId == null) continue;
+            ShopUnit parent = shopUnits.get(parentId);
+            if (parent == null || !parent.getType().equals(ShopUnitType.CATEGORY)) {
+                errors.add(new ItemError(null, entry.getValue().getId(),
+                        "ParentId должен ссылаться на существующую категорию"));
             }
         }
     }
 
+    /**
+     * Проверка, что перенос категорий не делает категорию потомком самой себя.
+     * Цепочка родителей идет по новым родителям из импорта и по старым из БД,
+     * элементы с уже проверенной цепочкой не проходятся повторно
+     * @param batch проверенный запрос на импорт
+     * @param shopUnits элементы из БД и импорта вместе со всеми предками
+     * @param errors ошибки по элементам
+     */
+    private void checkCycles(ShopUnitImportBatch batch, Map<UUID, ShopUnit> shopUnits, List<ItemError> errors) {
+        Set<UUID> checkedIds = new HashSet<>();
+        Set<UUID> chain = new LinkedHashSet<>();
+        for (Map.Entry<UUID, ShopUnitImport> entry : batch.getItems().entrySet()) {
+            UUID current = entry.getKey();
+            while (current != null && !checkedIds.contains(current) && chain.add(current)) {
+                ShopUnit shopUnit = shopUnits.get(current);
+                current = batch.getItems().containsKey(current) ? batch.getParentId(current)
+                        : shopUnit == null ? null : shopUnit.getParentId();
+            }
+            if (current != null && chain.contains(current)) {
+                errors.add(new ItemError(null, entry.getValue().getId(),
+                        "Категория не может быть перенесена в свою дочернюю категорию"));
+            } else {
+                checkedIds.addAll(chain);
+            }
+            chain.clear();
+        }
+    }
+
+    private void throwIfInvalid(List<ItemError> errors) {
+        if (!errors.isEmpty()) {
+            log.warn("Импорт не согласован с данными в БД, ошибок: {}", errors.size());
+            throw new ValidationFailedException(errors);
+        }
+    }
+
     /**
      * Получение товара и/или категории по id
      * @param id идентификатор товара и/или категории в формате UUID
@@ -285,27 +630,150 @@ public class ShopUnitService {
      */
     @Transactional
     public void saveShopUnitList(List<ShopUnit> shopUnits) {
-        log.info("Сохранение списка товаров/категорий");
+        log.debug("Сохранение списка товаров/категорий: {}", shopUnits.size());
         shopUnitRepo.saveAll(shopUnits);
     }
 
     /**
-     * Получение товара и/или категории по id
+     * Потоковая запись товара или категории вместе со всеми дочерними элементами в JSON.
+     * Поддерево берется из каталога в памяти, а если он не загружен или поддерево слишком большое,
+     * читается из БД одним запросом и не собирается в памяти целиком. Небольшие ответы сохраняются в кэш
      * @param id идентификатор товара и/или категории в формате String
-     * @return Optional<ShopUnit>
+     * @param outputStream поток для записи ответа
+     */
+    public void writeShopUnitTree(String id, OutputStream outputStream) throws IOException {
+        Timer.Sample operation = catalogMetricsService.startOperation();
+        try {
+            UUID uuid = parserService.stringToUUID(id);
+            byte[] cachedJson = catalogCacheService.getNode(uuid);
+            if (cachedJson != null) {
+                outputStream.write(cachedJson);
+                return;
+            }
+
+            long generation = catalogCacheService.getGeneration();
+            Timer.Sample phase = catalogMetricsService.startPhase();
+            byte[] engineJson = catalogEngine.writeSubtree(uuid);
+            if (engineJson != null) {
+                catalogMetricsService.stopPhase(phase, CatalogMetricsService.NODES, "engine");
+                outputStream.write(engineJson);
+                if (engineJson.length <= catalogCacheService.getMaxNodeEntryWeight()) {
+                    catalogCacheService.putNode(uuid, engineJson, generation);
+                }
+                return;
+            }
+
+            // Каталог в памяти не загружен или поддерево слишком большое для сборки ответа целиком
+            CachingOutputStream cachingOutputStream =
+                    new CachingOutputStream(outputStream, catalogCacheService.getMaxNodeEntryWeight());
+            try {
+                readOnlyTransactionTemplate.executeWithoutResult(status -> streamSubtree(uuid, cachingOutputStream));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            byte[] json = cachingOutputStream.getCachedBytes();
+            if (json != null) catalogCacheService.putNode(uuid, json, generation);
+        } finally {
+            catalogMetricsService.stopOperation(operation, CatalogMetricsService.NODES);
+        }
+    }
+
+    /**
+     * Поиск элемента и потоковая запись его поддерева, выполняется в одной читающей транзакции
+     * @param uuid идентификатор элемента
+     * @param outputStream поток для записи ответа
      */
-    public Optional<ShopUnit> getShopUnitById(String id) {
-        return getShopUnitById(parserService.stringToUUID(id));
+    private void streamSubtree(UUID uuid, OutputStream outputStream) {
+        Timer.Sample phase = catalogMetricsService.startPhase();
+        ShopUnit shopUnit = getShopUnitById(uuid).orElseThrow(ItemNotFoundException::new);
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.NODES, "find");
+
+        phase = catalogMetricsService.startPhase();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+            ShopUnitTreeWriter treeWriter = new ShopUnitTreeWriter(generator);
+            shopUnitJdbcRepo.findSubtree(shopUnit.getPath(), uncheckedWriter(treeWriter::write));
+            treeWriter.finish();
+            catalogMetricsService.recordItems(CatalogMetricsService.NODES, treeWriter.getWrittenCount());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.NODES, "stream");
     }
 
     /**
-     * Получение всех товаров и/или категорий
-     * @return список ShopUnit
+     * Страница списка товаров и категорий по возрастанию id
+     * @param after id последнего элемента предыдущей страницы, может отсутствовать
+     * @param limit размер страницы, может отсутствовать
+     * @param type фильтр по типу, может отсутствовать
+     * @param parentId фильтр по родителю, может отсутствовать
+     * @return страница и id для запроса следующей
      */
-    public List<ShopUnit> getShopUnits() {
-        List<ShopUnit> result = new ArrayList<>();
-        shopUnitRepo.findAll().forEach(result::add);
-        return result;
+    public ShopUnitPage getShopUnitPage(String after, String limit, String type, String parentId) {
+        Timer.Sample operation = catalogMetricsService.startOperation();
+        try {
+            int pageSize = parsePageSize(limit);
+            List<ShopUnitNode> items = shopUnitJdbcRepo.findNodePage(parserService.stringToUUID(after),
+                    parseType(type), parserService.stringToUUID(parentId), pageSize);
+            catalogMetricsService.recordItems(CatalogMetricsService.LIST, items.size());
+            UUID next = items.size() < pageSize ? null : items.get(items.size() - 1).getId();
+            return new ShopUnitPage(items, next);
+        } finally {
+            catalogMetricsService.stopOperation(operation, CatalogMetricsService.LIST);
+        }
+    }
+
+    /**
+     * Выгрузка всех товаров и категорий в NDJSON: по одному элементу в строке.
+     * Строки читаются курсором и сразу пишутся в ответ, память не зависит от размера каталога
+     * @param type фильтр по типу, может отсутствовать
+     * @param parentId фильтр по родителю, может отсутствовать
+     * @param outputStream поток для записи ответа
+     */
+    public void exportShopUnits(String type, String parentId, OutputStream outputStream) throws IOException {
+        Timer.Sample operation = catalogMetricsService.startOperation();
+        try {
+            ShopUnitType shopUnitType = parseType(type);
+            UUID parentUuid = parserService.stringToUUID(parentId);
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.setRootValueSeparator(new SerializedString("\n"));
+                long[] count = new long[1];
+                try {
+                    shopUnitJdbcRepo.findNodes(shopUnitType, parentUuid, uncheckedWriter(node -> {
+                        generator.writeObject(node);
+                        count[0]++;
+                    }));
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+                generator.writeRaw('\n');
+                catalogMetricsService.recordItems(CatalogMetricsService.EXPORT, count[0]);
+            }
+        } finally {
+            catalogMetricsService.stopOperation(operation, CatalogMetricsService.EXPORT);
+        }
+    }
+
+    private int parsePageSize(String limit) {
+        if (limit == null) return defaultPageSize;
+        try {
+            int pageSize = Integer.parseInt(limit);
+            if (pageSize > 0 && pageSize <= maxPageSize) return pageSize;
+        } catch (NumberFormatException e) {
+            // ответ тот же, что и для размера вне допустимого диапазона
+        }
+        log.debug("Недопустимый размер страницы: {}", limit);
+        throw new ValidationFailedException();
+    }
+
+    private ShopUnitType parseType(String type) {
+        if (type == null) return null;
+        try {
+            return ShopUnitType.valueOf(type);
+        } catch (IllegalArgumentException e) {
+            log.debug("Недопустимый тип элемента: {}", type);
+            throw new ValidationFailedException();
+        }
     }
 
     /**
@@ -313,90 +781,215 @@ public class ShopUnitService {
      * @return ShopUnitStatisticResponse со списком товаров
      */
     public ShopUnitStatisticResponse getSalesStatisticFor24Hour(String stringDate) {
-        checkDateFormat(stringDate);
+        Timer.Sample operation = catalogMetricsService.startOperation();
+        try {
+            return findSales(stringDate);
+        } finally {
+            catalogMetricsService.stopOperation(operation, CatalogMetricsService.SALES);
+        }
+    }
+
+    private ShopUnitStatisticResponse findSales(String stringDate) {
+        parserService.checkDateFormat(stringDate);
+        ShopUnitStatisticResponse cachedResponse = catalogCacheService.getSales(stringDate);
+        if (cachedResponse != null) return cachedResponse;
+
+        long generation = catalogCacheService.getGeneration();
         OffsetDateTime endDate = parserService.getIsoDate(stringDate);
-        ShopUnitStatisticResponse shopUnitStatisticResponse = new ShopUnitStatisticResponse();
 
         // Выставляем дату начала и окончания поиска
         OffsetDateTime startDate = endDate.minus(1, ChronoUnit.DAYS);
 
-        // Осуществляем поиск, используя Between нашего репозитория
-        List<ShopUnit> itemsList = shopUnitRepo.findAllByTypeAndLastPriceUpdatedDateBetween(ShopUnitType.OFFER, startDate, endDate);
-        // Заполняем наш shopUnitStatisticResponse объектами ShopUnitStatisticUnit, созданными из itemsList
-        itemsList.forEach(elem -> shopUnitStatisticResponse.getItems().add(
-                new ShopUnitStatisticUnit(elem.getId(), elem.getName(), elem.getParentId(),
-                        elem.getType(), elem.getPrice(), elem.getDate())));
+        List<ShopUnitStatisticItem> items = catalogEngine.findSales(startDate, endDate);
+        if (items == null) items = shopUnitJdbcRepo.findSales(startDate, endDate);
+        ShopUnitStatisticResponse shopUnitStatisticResponse = new ShopUnitStatisticResponse(items);
 
+        catalogCacheService.putSales(stringDate, shopUnitStatisticResponse, generation);
         return shopUnitStatisticResponse;
     }
 
     /**
-     * Проверка формата даты
-     * @param stringDate Дата в текстовом формате
+     * Потоковая запись истории обновлений товара или категории за полуинтервал [dateStart, dateEnd)
+     * @param id идентификатор товара или категории
+     * @param dateStart начало интервала, может отсутствовать
+     * @param dateEnd конец интервала, может отсутствовать
+     * @param outputStream поток для записи ответа
      */
-    private void checkDateFormat(String stringDate) {
-        Pattern pattern = Pattern.compile("\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}.\\d{3}Z");
-        Matcher matcher = pattern.matcher(stringDate);
-        if (!matcher.matches()) {
-            log.error("Дата имеет не корректный формат");
+    public void writeStatistic(String id, String dateStart, String dateEnd, OutputStream outputStream)
+            throws IOException {
+        Timer.Sample operation = catalogMetricsService.startOperation();
+        try {
+            streamStatistic(id, dateStart, dateEnd, outputStream);
+        } finally {
+            catalogMetricsService.stopOperation(operation, CatalogMetricsService.STATISTIC);
+        }
+    }
+
+    private void streamStatistic(String id, String dateStart, String dateEnd, OutputStream outputStream)
+            throws IOException {
+        UUID uuid = parserService.stringToUUID(id);
+        OffsetDateTime startDate = null;
+        if (dateStart != null) {
+            parserService.checkDateFormat(dateStart);
+            startDate = parserService.getIsoDate(dateStart);
+        }
+        OffsetDateTime endDate = null;
+        if (dateEnd != null) {
+            parserService.checkDateFormat(dateEnd);
+            endDate = parserService.getIsoDate(dateEnd);
+        }
+        if (startDate != null && endDate != null && startDate.isAfter(endDate)) {
+            log.warn("Начало интервала статистики позже его конца");
             throw new ValidationFailedException();
         }
+        OffsetDateTime from = startDate;
+        OffsetDateTime to = endDate;
+        try {
+            readOnlyTransactionTemplate.executeWithoutResult(status -> {
+                if (!shopUnitRepo.existsById(uuid)) throw new ItemNotFoundException();
+                try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                    generator.writeStartObject();
+                    generator.writeArrayFieldStart("items");
+                    shopUnitJdbcRepo.findStatistic(uuid, from, to, uncheckedWriter(generator::writeObject));
+                    generator.writeEndArray();
+                    generator.writeEndObject();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
     }
 
     /**
-     * Сохранение объекта в БД
-     * @param shopUnit объект ShopUnit для сохранения
+     * Запись в JSON из обработчика строк, который не может бросать IOException
      */
-    @Transactional
-    public void saveShopUnit(ShopUnit shopUnit) {
-        shopUnitRepo.save(shopUnit);
+    @FunctionalInterface
+    private interface JsonRowWriter<T> {
+        void write(T row) throws IOException;
+    }
+
+    private static <T> Consumer<T> uncheckedWriter(JsonRowWriter<T> writer) {
+        return row -> {
+            try {
+                writer.write(row);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
     }
 
     /**
-     * Удаление объекта ShopUnit
-     * @param id идентификатор объекта ShopUnit
+     * Состояние элемента, прочитанное из БД до применения импорта
      */
-    public void deleteShopUnitById(String id) {
-        UUID uuid = parserService.stringToUUID(id);
-        ShopUnit shopUnit = shopUnitRepo.findById(uuid).orElseThrow(ItemNotFoundException::new);
+    private static final class StoredState {
+
+        private final String name;
+        private final Instant date;
+        private final UUID parentId;
+        private final Long price;
+        private final long priceSum;
+        private final long offerCount;
+        private final Instant lastPriceUpdatedDate;
+
+        StoredState(ShopUnit shopUnit) {
+            this.name = shopUnit.getName();
+            this.date = toInstant(shopUnit.getDate());
+            this.parentId = shopUnit.getParentId();
+            this.price = shopUnit.getPrice();
+            this.priceSum = shopUnit.getPriceSum();
+            this.offerCount = shopUnit.getOfferCount();
+            this.lastPriceUpdatedDate = toInstant(shopUnit.getLastPriceUpdatedDate());
+        }
 
-        // При удалении категории удаляются все дочерние элементы
-        if (shopUnit.getType().equals(ShopUnitType.CATEGORY)) deleteChildrenItem(shopUnit);
+        /**
+         * Совпадение с итоговым состоянием элемента. Даты сравниваются как моменты времени,
+         * смещение прочитанной из БД даты может отличаться от смещения в запросе
+         */
+        boolean matches(ShopUnit shopUnit) {
+            return Objects.equals(name, shopUnit.getName())
+                    && Objects.equals(date, toInstant(shopUnit.getDate()))
+                    && Objects.equals(parentId, shopUnit.getParentId())
+                    && Objects.equals(price, shopUnit.getPrice())
+                    && priceSum == shopUnit.getPriceSum()
+                    && offerCount == shopUnit.getOfferCount()
+                    && Objects.equals(lastPriceUpdatedDate, toInstant(shopUnit.getLastPriceUpdatedDate()));
+        }
 
-        shopUnitRepo.delete(shopUnit);
+        private static Instant toInstant(OffsetDateTime dateTime) {
+            return dateTime == null ? null : dateTime.toInstant();
+        }
+    }
 
-        // Обновляем у родительской категории среднюю цену
-        updateParentCategory(shopUnit);
+    /**
+     * Снимок товара или категории для истории обновлений
+     * @param shopUnit товар или категория
+     * @return запись истории
+     */
+    private ShopUnitStatisticUnit toStatisticUnit(ShopUnit shopUnit) {
+        return new ShopUnitStatisticUnit(shopUnit.getId(), shopUnit.getName(), shopUnit.getParentId(),
+                shopUnit.getType(), shopUnit.getPrice(), shopUnit.getDate());
     }
 
     /**
-     * Обновление у родительской категории товара средней цены
-     * @param shopUnit товар
+     * Удаление объекта ShopUnit вместе с историей его обновлений
+     * @param id идентификатор объекта ShopUnit
      */
-    public void updateParentCategory(ShopUnit shopUnit) {
-        if (shopUnit.getParentId() != null) {
-            Optional<ShopUnit> parentShopUnit = shopUnitRepo.findById(shopUnit.getParentId());
-            if (parentShopUnit.isPresent() && !parentShopUnit.get().getChildren().isEmpty()) {
-                parentShopUnit.get().setPrice(getAveragePriceFromList(parentShopUnit.get().getChildren()));
-                shopUnitRepo.save(parentShopUnit.get());
-            }
+    public void deleteShopUnitById(String id) {
+        Timer.Sample operation = catalogMetricsService.startOperation();
+        try {
+            UUID uuid = parserService.stringToUUID(id);
+            runLocked(CatalogMetricsService.DELETE, Set.of(uuid), () -> deleteSubtree(uuid));
+        } finally {
+            catalogMetricsService.stopOperation(operation, CatalogMetricsService.DELETE);
         }
     }
 
     /**
-     * Удаление всех дочерних элементов
-     * @param shopUnit объект категории ShopUnit, который проверяем на наличие children
+     * Удаление элемента со всем поддеревом. Выполняется в транзакции под блокировками
+     * @param uuid идентификатор объекта ShopUnit
      */
-    private void deleteChildrenItem(ShopUnit shopUnit) {
-        if (!shopUnit.getChildren().isEmpty()) {
-            List<ShopUnit> shopUnitList = shopUnit.getChildren();
+    private void deleteSubtree(UUID uuid) {
+        ShopUnit shopUnit = shopUnitRepo.findById(uuid).orElseThrow(ItemNotFoundException::new);
+        List<UUID> ancestorIds = shopUnit.getAncestorIds();
+        List<UUID> lockedIds = new ArrayList<>(ancestorIds);
+        lockedIds.add(uuid);
+        checkLocked(lockedIds);
 
-            // Если у дочерней категории имеются категории, то их товары тоже удаляем
-            for (ShopUnit unit : shopUnitList) {
-                if (unit.getType().equals(ShopUnitType.CATEGORY)) deleteChildrenItem(unit);
+        // При удалении категории удаляются все дочерние элементы
+        Timer.Sample phase = catalogMetricsService.startPhase();
+        List<UUID> deletedIds = shopUnitRepo.findSubtreeIds(shopUnit.getPath());
+        shopUnitStatisticRepo.deleteSubtreeHistory(shopUnit.getPath());
+        shopUnitRepo.deleteSubtree(shopUnit.getPath());
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.DELETE, "subtree");
+        catalogMetricsService.recordItems(CatalogMetricsService.DELETE, deletedIds.size());
+
+        // Вычитаем удаленные товары из средней цены всех родительских категорий двумя запросами на всех предков,
+        // дата обновления родителей при удалении не меняется
+        phase = catalogMetricsService.startPhase();
+        if (!ancestorIds.isEmpty() && shopUnit.getOfferCount() > 0) {
+            Map<UUID, Long> oldPrices = new HashMap<>();
+            shopUnitRepo.findStatisticByIdIn(ancestorIds).forEach(unit -> oldPrices.put(unit.getId(), unit.getPrice()));
+            shopUnitRepo.subtractFromAggregates(ancestorIds, shopUnit.getPriceSum(), shopUnit.getOfferCount());
+            shopUnitRepo.updateAveragePrice(ancestorIds);
+
+            // В историю попадают только категории, у которых изменилась средняя цена
+            List<ShopUnitStatisticUnit> history = new ArrayList<>();
+            for (ShopUnitStatisticUnit ancestor : shopUnitRepo.findStatisticByIdIn(ancestorIds)) {
+                if (!Objects.equals(oldPrices.get(ancestor.getId()), ancestor.getPrice())) {
+                    history.add(ancestor);
+                }
             }
-
-            shopUnitRepo.deleteAll(shopUnitList);
+            shopUnitStatisticRepo.saveAll(history);
         }
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.DELETE, "ancestors");
+
+        catalogEngine.removeAfterCommit(uuid);
+
+        // Предки сбрасываются всегда: в их ответе есть удаленный элемент
+        List<UUID> changedIds = new ArrayList<>(deletedIds);
+        changedIds.addAll(ancestorIds);
+        catalogCacheService.invalidate(changedIds);
     }
 }
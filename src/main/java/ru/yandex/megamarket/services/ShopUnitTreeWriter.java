@@ -0,0 +1,81 @@
+package ru.yandex.megamarket.services;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import ru.yandex.megamarket.model.ShopUnitNode;
+import ru.yandex.megamarket.model.ShopUnitType;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.UUID;
+
+/**
+ * Потоковая запись дерева товаров/категорий в JSON.
+ * Элементы должны поступать в порядке обхода в глубину, в памяти хранится только цепочка открытых категорий
+ */
+public class ShopUnitTreeWriter {
+
+    private final JsonGenerator generator;
+    private final Deque<UUID> openCategories = new ArrayDeque<>();
+    private long writtenCount;
+
+    public ShopUnitTreeWriter(JsonGenerator generator) {
+        this.generator = generator;
+    }
+
+    /**
+     * Запись очередного элемента дерева
+     * @param node элемент, родитель которого уже записан
+     */
+    public void write(ShopUnitNode node) throws IOException {
+        // Закрываем категории, поддеревья которых закончились
+        while (!openCategories.isEmpty() && !openCategories.peek().equals(node.getParentId())) {
+            closeCategory();
+        }
+
+        generator.writeStartObject();
+        generator.writeStringField("id", node.getId().toString());
+        generator.writeStringField("name", node.getName());
+        generator.writeStringField("date", ParserService.DATE_FORMATTER.format(node.getDate()));
+        generator.writeStringField("parentId", node.getParentId() == null ? null : node.getParentId().toString());
+        generator.writeStringField("type", node.getType().name());
+        if (node.getPrice() == null) {
+            generator.writeNullField("price");
+        } else {
+            generator.writeNumberField("price", node.getPrice());
+        }
+
+        if (node.getType().equals(ShopUnitType.CATEGORY)) {
+            generator.writeArrayFieldStart("children");
+            openCategories.push(node.getId());
+        } else {
+            generator.writeNullField("children");
+            generator.writeEndObject();
+        }
+        writtenCount++;
+    }
+
+    /**
+     * Количество записанных элементов
+     * @return размер записанного поддерева
+     */
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+
+    /**
+     * Закрытие всех открытых категорий после записи последнего элемента
+     */
+    public void finish() throws IOException {
+        while (!openCategories.isEmpty()) {
+            closeCategory();
+        }
+        generator.flush();
+    }
+
+    private void closeCategory() throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+        openCategories.pop();
+    }
+}
@@ -0,0 +1,95 @@
+package ru.yandex.megamarket.services;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Полосатые блокировки элементов каталога.
+ * Писатель блокирует все элементы на путях от корня до изменяемых элементов, поэтому изменения
+ * в непересекающихся деревьях идут параллельно, а общие категории меняются строго по очереди
+ */
+@Service
+public class SubtreeLockService {
+
+    private final ReentrantLock[] stripes;
+
+    @Autowired
+    public SubtreeLockService(@Value("${locks.stripes}") int stripeCount) {
+        stripes = new ReentrantLock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Захват блокировок набора элементов. Полосы захватываются по возрастанию номера,
+     * поэтому два писателя не могут заблокировать друг друга
+     * @param ids идентификаторы элементов
+     * @return захваченная блокировка, освобождается через close()
+     */
+    public SubtreeLock lock(Collection<UUID> ids) {
+        TreeSet<Integer> stripeIndexes = new TreeSet<>();
+        ids.forEach(id -> stripeIndexes.add(stripeIndex(id)));
+
+        List<ReentrantLock> acquired = new ArrayList<>(stripeIndexes.size());
+        for (int stripeIndex : stripeIndexes) {
+            ReentrantLock stripe = stripes[stripeIndex];
+            stripe.lock();
+            acquired.add(stripe);
+        }
+        return new SubtreeLock(acquired);
+    }
+
+    /**
+     * Захват всех полос, например, на время загрузки всего каталога
+     * @return захваченная блокировка, освобождается через close()
+     */
+    public SubtreeLock lockAll() {
+        List<ReentrantLock> acquired = new ArrayList<>(stripes.length);
+        for (ReentrantLock stripe : stripes) {
+            stripe.lock();
+            acquired.add(stripe);
+        }
+        return new SubtreeLock(acquired);
+    }
+
+    /**
+     * Проверка, что элемент заблокирован текущим потоком
+     * @param id идентификатор элемента
+     * @return true, если полоса элемента захвачена текущим потоком
+     */
+    public boolean isLocked(UUID id) {
+        return stripes[stripeIndex(id)].isHeldByCurrentThread();
+    }
+
+    private int stripeIndex(UUID id) {
+        return Math.floorMod(id.hashCode(), stripes.length);
+    }
+
+    /**
+     * Набор захваченных полос
+     */
+    public static class SubtreeLock implements AutoCloseable {
+
+        private final List<ReentrantLock> acquired;
+
+        private SubtreeLock(List<ReentrantLock> acquired) {
+            this.acquired = acquired;
+        }
+
+        @Override
+        public void close() {
+            for (int i = acquired.size() - 1; i >= 0; i--) {
+                acquired.get(i).unlock();
+            }
+        }
+    }
+}
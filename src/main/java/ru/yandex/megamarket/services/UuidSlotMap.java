@@ -0,0 +1,123 @@
+package ru.yandex.megamarket.services;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Отображение UUID в номер слота без упаковки ключей и значений в объекты.
+ * Открытая адресация с линейным пробированием, при удалении хвост цепочки сдвигается назад,
+ * поэтому пометки удаленных ячеек не нужны. Не потокобезопасно
+ */
+class UuidSlotMap {
+
+    private static final int EMPTY = -1;
+
+    private long[] mostSigBits;
+    private long[] leastSigBits;
+    private int[] slots;
+    private int size;
+
+    UuidSlotMap(int expectedSize) {
+        allocate(tableSize(expectedSize));
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Номер слота элемента
+     * @return номер слота или -1, если элемента нет
+     */
+    int get(UUID id) {
+        long most = id.getMostSignificantBits();
+        long least = id.getLeastSignificantBits();
+        int mask = slots.length - 1;
+        for (int i = index(most, least, mask); slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (mostSigBits[i] == most && leastSigBits[i] == least) return slots[i];
+        }
+        return EMPTY;
+    }
+
+    void put(UUID id, int slot) {
+        if ((size + 1) * 2 > slots.length) resize(slots.length * 2);
+        long most = id.getMostSignificantBits();
+        long least = id.getLeastSignificantBits();
+        int mask = slots.length - 1;
+        int i = index(most, least, mask);
+        for (; slots[i] != EMPTY; i = (i + 1) & mask) {
+            if (mostSigBits[i] == most && leastSigBits[i] == least) {
+                slots[i] = slot;
+                return;
+            }
+        }
+        mostSigBits[i] = most;
+        leastSigBits[i] = least;
+        slots[i] = slot;
+        size++;
+    }
+
+    void remove(UUID id) {
+        long most = id.getMostSignificantBits();
+        long least = id.getLeastSignificantBits();
+        int mask = slots.length - 1;
+        int i = index(most, least, mask);
+        while (slots[i] != EMPTY && (mostSigBits[i] != most || leastSigBits[i] != least)) {
+            i = (i + 1) & mask;
+        }
+        if (slots[i] == EMPTY) return;
+        size--;
+
+        // Сдвигаем назад элементы цепочки, которые иначе стали бы недостижимы из своей начальной ячейки
+        int hole = i;
+        for (int j = (i + 1) & mask; slots[j] != EMPTY; j = (j + 1) & mask) {
+            int home = index(mostSigBits[j], leastSigBits[j], mask);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                mostSigBits[hole] = mostSigBits[j];
+                leastSigBits[hole] = leastSigBits[j];
+                slots[hole] = slots[j];
+                hole = j;
+            }
+        }
+        slots[hole] = EMPTY;
+    }
+
+    void clear() {
+        Arrays.fill(slots, EMPTY);
+        size = 0;
+    }
+
+    private void resize(int tableSize) {
+        long[] oldMost = mostSigBits;
+        long[] oldLeast = leastSigBits;
+        int[] oldSlots = slots;
+        allocate(tableSize);
+        int mask = tableSize - 1;
+        for (int j = 0; j < oldSlots.length; j++) {
+            if (oldSlots[j] == EMPTY) continue;
+            int i = index(oldMost[j], oldLeast[j], mask);
+            while (slots[i] != EMPTY) i = (i + 1) & mask;
+            mostSigBits[i] = oldMost[j];
+            leastSigBits[i] = oldLeast[j];
+            slots[i] = oldSlots[j];
+        }
+    }
+
+    private void allocate(int tableSize) {
+        mostSigBits = new long[tableSize];
+        leastSigBits = new long[tableSize];
+        slots = new int[tableSize];
+        Arrays.fill(slots, EMPTY);
+    }
+
+    private static int tableSize(int expectedSize) {
+        int tableSize = 16;
+        while (tableSize < expectedSize * 2) tableSize <<= 1;
+        return tableSize;
+    }
+
+    private static int index(long most, long least, int mask) {
+        long hash = (most ^ least) * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,122 @@
+package ru.yandex.megamarket.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.availability.AvailabilityChangeEvent;
+import org.springframework.boot.availability.ReadinessState;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.model.ShopUnitType;
+import ru.yandex.megamarket.repository.ShopUnitRepo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Прогрев после запуска: категории, ближние к корню, читаются из БД и складываются в кэш ответов /nodes/{id},
+ * разбор и проверка импорта прогоняются на синтетическом запросе.
+ * Spring Boot переводит приложение в ACCEPTING_TRAFFIC только после всех ApplicationRunner,
+ * поэтому /actuator/health/readiness сообщает о готовности после прогрева.
+ * Запросы прогрева не попадают в метрики операций
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "warmup.enabled", havingValue = "true")
+public class WarmUpService implements ApplicationRunner {
+
+    private static final String WARM_UP_REQUEST = "{\"items\":["
+            + "{\"type\":\"CATEGORY\",\"name\":\"Товары\",\"id\":\"069cb8d7-bbdd-47d3-ad8f-82ef4c269df1\",\"parentId\":null},"
+            + "{\"type\":\"OFFER\",\"name\":\"Товар\",\"id\":\"74b81fda-9cdc-4b63-8927-c978afed5cf4\","
+            + "\"parentId\":\"069cb8d7-bbdd-47d3-ad8f-82ef4c269df1\",\"price\":100}],"
+            + "\"updateDate\":\"2022-02-01T12:00:00.000Z\"}";
+
+    private final ShopUnitService shopUnitService;
+    private final CatalogMetricsService catalogMetricsService;
+    private final ShopUnitRepo shopUnitRepo;
+    private final ShopUnitImportValidator shopUnitImportValidator;
+    private final ObjectMapper objectMapper;
+    private final ApplicationEventPublisher eventPublisher;
+    private final int maxCategories;
+    private final int iterations;
+    private final Duration maxDuration;
+
+    @Autowired
+    public WarmUpService(ShopUnitService shopUnitService, CatalogMetricsService catalogMetricsService,
+                         ShopUnitRepo shopUnitRepo, ShopUnitImportValidator shopUnitImportValidator,
+                         ObjectMapper objectMapper, ApplicationEventPublisher eventPublisher,
+                         @Value("${warmup.max-categories}") int maxCategories,
+                         @Value("${warmup.iterations}") int iterations,
+                         @Value("${warmup.max-duration}") Duration maxDuration) {
+        this.shopUnitService = shopUnitService;
+        this.catalogMetricsService = catalogMetricsService;
+        this.shopUnitRepo = shopUnitRepo;
+        this.shopUnitImportValidator = shopUnitImportValidator;
+        this.objectMapper = objectMapper;
+        this.eventPublisher = eventPublisher;
+        this.maxCategories = maxCategories;
+        this.iterations = iterations;
+        this.maxDuration = maxDuration;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        AvailabilityChangeEvent.publish(eventPublisher, this, ReadinessState.REFUSING_TRAFFIC);
+        long start = System.nanoTime();
+        long deadline = start + maxDuration.toNanos();
+        int categories = 0;
+        catalogMetricsService.startWarmUp();
+        try {
+            categories = warmUpCategories(deadline);
+            warmUpImport(deadline);
+            // Запрос /sales прогревает индекс по дате обновления цены
+            shopUnitService.getSalesStatisticFor24Hour(
+                    ParserService.DATE_FORMATTER.format(OffsetDateTime.now(ZoneOffset.UTC)));
+        } catch (RuntimeException | IOException e) {
+            // Прогрев не должен мешать запуску, без него первые запросы просто медленнее
+            log.warn("Прогрев прерван", e);
+        } finally {
+            catalogMetricsService.stopWarmUp();
+        }
+        log.info("Прогрев: categories={} durationMs={}", categories,
+                Duration.ofNanos(System.nanoTime() - start).toMillis());
+    }
+
+    /**
+     * Чтение и сериализация поддеревьев категорий, ответы небольших категорий остаются в кэше
+     * @param deadline время окончания прогрева по System.nanoTime()
+     * @return количество прогретых категорий
+     */
+    private int warmUpCategories(long deadline) throws IOException {
+        List<UUID> ids = shopUnitRepo.findIdsByTypeOrderByDepth(ShopUnitType.CATEGORY, PageRequest.of(0, maxCategories));
+        int count = 0;
+        for (UUID id : ids) {
+            if (System.nanoTime() > deadline) break;
+            shopUnitService.writeShopUnitTree(id.toString(), OutputStream.nullOutputStream());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Разбор JSON и проверка запроса на импорт без записи в БД
+     * @param deadline время окончания прогрева по System.nanoTime()
+     */
+    private void warmUpImport(long deadline) throws IOException {
+        for (int i = 0; i < iterations && System.nanoTime() < deadline; i++) {
+            ShopUnitImportRequest request = objectMapper.readValue(WARM_UP_REQUEST, ShopUnitImportRequest.class);
+            shopUnitImportValidator.validate(request);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+-- Схема каталога для встроенной БД H2, версии совпадают с db/migration.
+-- Сравнение строк в H2 и так побайтовое, поэтому collate для path не нужен
+
+create table if not exists shop_unit (
+    id                      uuid          not null primary key,
+    name                    varchar(255)  not null,
+    date                    timestamp     not null,
+    last_price_updated_date timestamp,
+    parent_id               uuid,
+    type                    varchar(255)  not null,
+    price                   int8,
+    price_sum               int8          not null,
+    offer_count             int8          not null,
+    path                    varchar(4000) not null
+);
+
+create index if not exists shop_unit_path_idx on shop_unit (path);
+create index if not exists shop_unit_parent_id_idx on shop_unit (parent_id);
+create index if not exists shop_unit_type_last_price_updated_date_idx on shop_unit (type, last_price_updated_date);
+
+create table if not exists shop_unit_statistic_unit (
+    history_id int8         not null primary key,
+    id         uuid         not null,
+    name       varchar(255) not null,
+    parent_id  uuid,
+    type       varchar(255) not null,
+    price      int8,
+    date       timestamp    not null
+);
+
+create index if not exists shop_unit_statistic_unit_id_date_idx on shop_unit_statistic_unit (id, date);
+
+create sequence if not exists shop_unit_statistic_unit_seq start with 1 increment by 100;
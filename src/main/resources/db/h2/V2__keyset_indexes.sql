@@ -0,0 +1,6 @@
+-- Индексы постраничного списка /nodes, как в db/migration
+
+create index if not exists shop_unit_parent_id_id_idx on shop_unit (parent_id, id);
+drop index if exists shop_unit_parent_id_idx;
+
+create index if not exists shop_unit_type_id_idx on shop_unit (type, id);
@@ -0,0 +1,15 @@
+-- Очередь асинхронного импорта: задачи выбираются по состоянию в порядке времени обновления
+
+create table if not exists import_job (
+    id          uuid          not null primary key,
+    status      varchar(255)  not null,
+    update_date timestamp     not null,
+    item_count  int4          not null,
+    payload     text          not null,
+    created_at  timestamp     not null,
+    started_at  timestamp,
+    finished_at timestamp,
+    error       varchar(4000)
+);
+
+create index if not exists import_job_status_update_date_idx on import_job (status, update_date, created_at);
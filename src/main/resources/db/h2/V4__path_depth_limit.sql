@@ -0,0 +1,2 @@
+-- Глубина вложенности ограничена 64 уровнями (ShopUnit.MAX_DEPTH), как в db/migration/V5
+alter table shop_unit add constraint shop_unit_path_depth_check check (length(path) <= 64 * 37);
@@ -0,0 +1,41 @@
+-- Схема каталога. Все операторы идемпотентны, поэтому миграция применяется и к базе,
+-- созданной раньше через spring.jpa.generate-ddl
+
+create table if not exists shop_unit (
+    id                      uuid          not null primary key,
+    name                    varchar(255)  not null,
+    date                    timestamp     not null,
+    last_price_updated_date timestamp,
+    parent_id               uuid,
+    type                    varchar(255)  not null,
+    price                   int8,
+    price_sum               int8          not null,
+    offer_count             int8          not null,
+    -- Пути состоят из UUID и "/", побайтовое сравнение позволяет одному индексу
+    -- обслуживать и like 'prefix%', и order by path
+    path                    varchar(4000) collate "C" not null
+);
+
+alter table shop_unit alter column path type varchar(4000) collate "C";
+
+-- Поддеревья: /nodes/{id}, удаление, перенос, пересчет категорий
+create index if not exists shop_unit_path_idx on shop_unit (path);
+-- Дочерние элементы категории
+create index if not exists shop_unit_parent_id_idx on shop_unit (parent_id);
+-- /sales: товары, цена которых обновлялась в интервале
+create index if not exists shop_unit_type_last_price_updated_date_idx on shop_unit (type, last_price_updated_date);
+
+create table if not exists shop_unit_statistic_unit (
+    history_id int8         not null primary key,
+    id         uuid         not null,
+    name       varchar(255) not null,
+    parent_id  uuid,
+    type       varchar(255) not null,
+    price      int8,
+    date       timestamp    not null
+);
+
+-- /node/{id}/statistic и удаление истории поддерева
+create index if not exists shop_unit_statistic_unit_id_date_idx on shop_unit_statistic_unit (id, date);
+
+create sequence if not exists shop_unit_statistic_unit_seq start 1 increment 100;
@@ -0,0 +1,7 @@
+-- Постраничный список /nodes идет по возрастанию id, индексы с id вторым столбцом
+-- отдают страницу с фильтром по родителю или типу без сортировки
+
+create index if not exists shop_unit_parent_id_id_idx on shop_unit (parent_id, id);
+drop index if exists shop_unit_parent_id_idx;
+
+create index if not exists shop_unit_type_id_idx on shop_unit (type, id);
@@ -0,0 +1,73 @@
+-- Обновление базы, созданной раньше через spring.jpa.generate-ddl. Такая база получает baseline 1
+-- и пропускает V1, поэтому все, что создает V1, здесь добавляется к уже существующим таблицам.
+-- Все операторы идемпотентны, на базе, созданной миграциями, они ничего не меняют
+
+alter table shop_unit add column if not exists price_sum int8;
+alter table shop_unit add column if not exists offer_count int8;
+alter table shop_unit add column if not exists path varchar(4000) collate "C";
+
+-- Пути по цепочке родителей от корней
+with recursive tree (id, path) as (
+    select id, cast(id::text || '/' as varchar(4000))
+    from shop_unit
+    where parent_id is null
+    union all
+    select u.id, cast(tree.path || u.id::text || '/' as varchar(4000))
+    from shop_unit u
+    join tree on u.parent_id = tree.id
+)
+update shop_unit u set path = tree.path from tree where u.id = tree.id and u.path is null;
+
+-- Суммы цен и количество товаров: у товара своя цена, у категории все товары поддерева
+update shop_unit set price_sum = price, offer_count = 1 where type = 'OFFER' and price_sum is null;
+update shop_unit c set price_sum = a.price_sum, offer_count = a.offer_count,
+    price = case when a.offer_count = 0 then null else a.price_sum / a.offer_count end
+from (
+    select category.id, cast(coalesce(sum(offer.price), 0) as int8) as price_sum, count(offer.id) as offer_count
+    from shop_unit category
+    left join shop_unit offer on offer.type = 'OFFER' and offer.path like category.path || '%'
+    where category.type = 'CATEGORY' and category.price_sum is null
+    group by category.id
+) a
+where c.id = a.id;
+
+alter table shop_unit alter column price_sum set not null;
+alter table shop_unit alter column offer_count set not null;
+alter table shop_unit alter column path set not null;
+alter table shop_unit alter column path type varchar(4000) collate "C";
+
+create index if not exists shop_unit_path_idx on shop_unit (path);
+create index if not exists shop_unit_type_last_price_updated_date_idx on shop_unit (type, last_price_updated_date);
+
+create sequence if not exists shop_unit_statistic_unit_seq start 1 increment 100;
+
+create table if not exists shop_unit_statistic_unit (
+    history_id int8         not null primary key,
+    id         uuid         not null,
+    name       varchar(255) not null,
+    parent_id  uuid,
+    type       varchar(255) not null,
+    price      int8,
+    date       timestamp    not null
+);
+
+-- generate-ddl создавал таблицу истории с первичным ключом по id элемента, то есть не больше одной записи
+-- на элемент. Записи получают номера из последовательности, первичный ключ переносится на номер записи
+do $$
+declare
+    primary_key varchar;
+begin
+    if not exists (select 1 from information_schema.columns where table_schema = current_schema()
+            and table_name = 'shop_unit_statistic_unit' and column_name = 'history_id') then
+        select constraint_name into primary_key from information_schema.table_constraints
+        where table_schema = current_schema() and table_name = 'shop_unit_statistic_unit'
+            and constraint_type = 'PRIMARY KEY';
+        execute format('alter table shop_unit_statistic_unit drop constraint %I', primary_key);
+        alter table shop_unit_statistic_unit add column history_id int8;
+        update shop_unit_statistic_unit set history_id = nextval('shop_unit_statistic_unit_seq');
+        alter table shop_unit_statistic_unit alter column history_id set not null;
+        alter table shop_unit_statistic_unit add primary key (history_id);
+    end if;
+end $$;
+
+create index if not exists shop_unit_statistic_unit_id_date_idx on shop_unit_statistic_unit (id, date);
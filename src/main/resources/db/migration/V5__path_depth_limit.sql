@@ -0,0 +1,6 @@
+-- Глубина вложенности ограничена 64 уровнями (ShopUnit.MAX_DEPTH). Каждый уровень добавляет к path
+-- 36 символов id и разделитель, а строка btree индекса shop_unit_path_idx не может быть длиннее 2704 байт,
+-- то есть индекс перестает принимать пути уже после 73 уровней. Импорт отклоняет более глубокие элементы
+-- с ошибкой валидации, ограничение в БД страхует от записи в обход проверки.
+-- not valid: строки, записанные до ограничения, не перепроверяются
+alter table shop_unit add constraint shop_unit_path_depth_check check (length(path) <= 64 * 37) not valid;
@@ -0,0 +1,145 @@
+package ru.yandex.megamarket;
+
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Миграции каталога на встроенном PostgreSQL: обновление базы, созданной через generate-ddl,
+ * и планы основных запросов по индексам из миграций
+ */
+class CatalogMigrationTest {
+
+    /**
+     * Схема, которую создавал generate-ddl до сумм цен, материализованных путей и номеров записей истории
+     */
+    private static final String GENERATE_DDL_SCHEMA = "create table shop_unit (id uuid not null, "
+            + "date timestamp not null, last_price_updated_date timestamp, name varchar(255) not null, "
+            + "parent_id uuid, price int8, type varchar(255) not null, primary key (id)); "
+            + "create table shop_unit_statistic_unit (id uuid not null, date timestamp not null, "
+            + "name varchar(255) not null, parent_id uuid, price int8, type varchar(255) not null, primary key (id))";
+
+    private static final String ROOT = "00000000-0000-0000-0000-000000000001";
+    private static final String CATEGORY = "00000000-0000-0000-0000-000000000002";
+    private static final String EMPTY_CATEGORY = "00000000-0000-0000-0000-000000000003";
+
+    @Test
+    void migrationUpgradesGenerateDdlDatabase() throws Exception {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(migrate("generate_ddl_catalog", GENERATE_DDL_SCHEMA));
+        jdbcTemplate.update("insert into shop_unit (id, name, date, parent_id, type, price) values "
+                + "('" + ROOT + "', 'Корень', now(), null, 'CATEGORY', 200), "
+                + "('" + CATEGORY + "', 'Категория', now(), '" + ROOT + "', 'CATEGORY', 250), "
+                + "('" + EMPTY_CATEGORY + "', 'Пустая', now(), '" + ROOT + "', 'CATEGORY', null), "
+                + "('00000000-0000-0000-0000-000000000011', 'Товар', now(), '" + ROOT + "', 'OFFER', 100), "
+                + "('00000000-0000-0000-0000-000000000012', 'Товар', now(), '" + CATEGORY + "', 'OFFER', 200), "
+                + "('00000000-0000-0000-0000-000000000013', 'Товар', now(), '" + CATEGORY + "', 'OFFER', 301)");
+        jdbcTemplate.update("insert into shop_unit_statistic_unit (id, name, date, parent_id, type, price) values "
+                + "('" + CATEGORY + "', 'Категория', now(), '" + ROOT + "', 'CATEGORY', 250)");
+
+        flyway(jdbcTemplate.getDataSource()).migrate();
+
+        assertCategory(jdbcTemplate, ROOT, ROOT + "/", 601, 3, 200L);
+        assertCategory(jdbcTemplate, CATEGORY, ROOT + "/" + CATEGORY + "/", 501, 2, 250L);
+        assertCategory(jdbcTemplate, EMPTY_CATEGORY, ROOT + "/" + EMPTY_CATEGORY + "/", 0, 0, null);
+        assertEquals("00000000-0000-0000-0000-000000000013/", jdbcTemplate.queryForObject(
+                "select substring(path, 75) from shop_unit where price = 301", String.class));
+        assertEquals(3, jdbcTemplate.queryForObject("select count(*) from information_schema.columns "
+                + "where table_name = 'shop_unit' and column_name in ('price_sum', 'offer_count', 'path') "
+                + "and is_nullable = 'NO'", Integer.class));
+        assertEquals("C", jdbcTemplate.queryForObject("select collation_name from information_schema.columns "
+                + "where table_name = 'shop_unit' and column_name = 'path'", String.class));
+
+        // История пишется так же, как ее пишет приложение: несколько записей одного элемента с номерами
+        // из последовательности, запись из прежней таблицы сохраняется
+        for (int i = 0; i < 2; i++) {
+            jdbcTemplate.update("insert into shop_unit_statistic_unit (history_id, id, name, parent_id, type, price, "
+                    + "date) values (nextval('shop_unit_statistic_unit_seq'), '" + CATEGORY + "', 'Категория', '"
+                    + ROOT + "', 'CATEGORY', 250, now())");
+        }
+        assertEquals(3, jdbcTemplate.queryForObject("select count(distinct history_id) "
+                + "from shop_unit_statistic_unit where id = '" + CATEGORY + "'", Integer.class));
+    }
+
+    @Test
+    void queriesUseIndexes() throws Exception {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(migrate("indexed_catalog", null));
+        // 100 корневых категорий по 1000 элементов, каждый десятый элемент - категория
+        jdbcTemplate.update("insert into shop_unit (id, name, date, last_price_updated_date, parent_id, type, "
+                + "price, price_sum, offer_count, path) "
+                + "select md5(i::text)::uuid, 'n', now(), now() - (i || ' minutes')::interval, "
+                + "md5((i / 1000)::text || 'root')::uuid, case when i % 10 = 0 then 'CATEGORY' else 'OFFER' end, "
+                + "i, i, 1, md5((i / 1000)::text || 'root')::uuid || '/' || md5(i::text)::uuid || '/' "
+                + "from generate_series(1, 100000) i");
+        jdbcTemplate.update("insert into shop_unit_statistic_unit (history_id, id, name, parent_id, type, price, date) "
+                + "select i, md5((i % 10000)::text)::uuid, 'n', null, 'OFFER', i, now() - (i || ' minutes')::interval "
+                + "from generate_series(1, 100000) i");
+        jdbcTemplate.execute("analyze");
+        String path = jdbcTemplate.queryForObject("select md5('0root')::uuid || '/'", String.class);
+
+        assertIndex(jdbcTemplate, "shop_unit_path_idx", "select id, name, date, parent_id, type, price "
+                + "from shop_unit where path like '" + path + "%' order by path");
+        assertIndex(jdbcTemplate, "shop_unit_parent_id_id_idx", "select id, name, date, parent_id, type, price "
+                + "from shop_unit where true and parent_id = '" + ROOT + "' order by id limit 100");
+        assertIndex(jdbcTemplate, "shop_unit_type_id_idx", "select id, name, date, parent_id, type, price "
+                + "from shop_unit where true and type = 'CATEGORY' order by id limit 100");
+        assertIndex(jdbcTemplate, "shop_unit_type_last_price_updated_date_idx", "select id, name, parent_id, type, "
+                + "price, date from shop_unit where type = 'OFFER' "
+                + "and last_price_updated_date between now() - interval '1 day' and now()");
+        assertIndex(jdbcTemplate, "shop_unit_statistic_unit_id_date_idx", "select id, name, parent_id, type, "
+                + "price, date from shop_unit_statistic_unit where id = md5('77')::uuid "
+                + "and date >= now() - interval '1 day' order by date");
+    }
+
+    /**
+     * Новая база со схемой из миграций
+     * @param name имя базы
+     * @param schema схема до миграций или null для пустой базы
+     */
+    private static DataSource migrate(String name, String schema) throws Exception {
+        DataSource dataSource = TestPostgres.createDatabase(name);
+        if (schema == null) {
+            flyway(dataSource).migrate();
+        } else {
+            new JdbcTemplate(dataSource).execute(schema);
+        }
+        return dataSource;
+    }
+
+    /**
+     * Flyway с теми же настройками, что в application.properties
+     */
+    private static Flyway flyway(DataSource dataSource) {
+        return Flyway.configure()
+                .dataSource(dataSource)
+                .locations("classpath:db/migration")
+                .baselineOnMigrate(true)
+                .baselineVersion("1")
+                .load();
+    }
+
+    private static void assertCategory(JdbcTemplate jdbcTemplate, String id, String path, long priceSum,
+                                       long offerCount, Long price) {
+        Map<String, Object> row = jdbcTemplate.queryForMap(
+                "select path, price_sum, offer_count, price from shop_unit where id = '" + id + "'");
+        assertEquals(path, row.get("path"));
+        assertEquals(priceSum, row.get("price_sum"));
+        assertEquals(offerCount, row.get("offer_count"));
+        if (price == null) {
+            assertNull(row.get("price"));
+        } else {
+            assertEquals(price, row.get("price"));
+        }
+    }
+
+    private static void assertIndex(JdbcTemplate jdbcTemplate, String index, String sql) {
+        String plan = String.join("\n", jdbcTemplate.queryForList("explain " + sql, String.class));
+        assertTrue(plan.contains(index), "Запрос не использует " + index + ":\n" + plan);
+    }
+}
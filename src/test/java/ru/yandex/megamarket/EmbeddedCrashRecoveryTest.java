@@ -0,0 +1,221 @@
+package ru.yandex.megamarket;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.flywaydb.core.Flyway;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import ru.yandex.megamarket.model.ShopUnitImport;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.model.ShopUnitType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Аварийная остановка приложения на встроенной БД H2 посреди потокового импорта.
+ * Приложение запускается отдельным процессом и убивается без завершения, после чего база
+ * открывается заново: зафиксированные данные на месте, незафиксированного импорта нет,
+ * суммы цен категорий согласованы с товарами
+ */
+class EmbeddedCrashRecoveryTest {
+
+    private static final String UPDATE_DATE = "2022-02-01T12:00:00.000Z";
+    private static final int CATEGORIES = 10;
+    private static final int OFFERS = 100;
+    private static final int BULK_OFFERS = 20_000;
+    private static final int BULK_CHUNKS = 5;
+    private static final long START_TIMEOUT_MILLIS = 120_000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient httpClient = HttpClient.newHttpClient();
+
+    @TempDir
+    Path dataDir;
+
+    @Test
+    void databaseReopensConsistentlyAfterCrashDuringImport() throws Exception {
+        String root = UUID.randomUUID().toString();
+        List<String> categories = new ArrayList<>();
+        List<ShopUnitImport> items = new ArrayList<>();
+        items.add(new ShopUnitImport(root, "Корень", null, ShopUnitType.CATEGORY, null));
+        for (int i = 0; i < CATEGORIES; i++) {
+            String category = UUID.randomUUID().toString();
+            categories.add(category);
+            items.add(new ShopUnitImport(category, "Категория", root, ShopUnitType.CATEGORY, null));
+        }
+        for (int i = 0; i < OFFERS; i++) {
+            items.add(new ShopUnitImport(UUID.randomUUID().toString(), "Товар", categories.get(i % CATEGORIES),
+                    ShopUnitType.OFFER, (long) i * 10));
+        }
+
+        int port = freePort();
+        Process process = start(port);
+        String tree;
+        try {
+            assertEquals(200, post(port, "/imports",
+                    objectMapper.writeValueAsString(new ShopUnitImportRequest(items, UPDATE_DATE))));
+            tree = get(port, "/nodes/" + root);
+
+            // Поток пишется наполовину, приложение записывает несколько порций и убивается до фиксации
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port
+                    + "/imports/bulk?updateDate=2022-02-02T12:00:00.000Z").openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/x-ndjson");
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(8192);
+            OutputStream outputStream = connection.getOutputStream();
+            for (int i = 0; i < BULK_OFFERS / 2; i++) {
+                outputStream.write(objectMapper.writeValueAsBytes(new ShopUnitImport(UUID.randomUUID().toString(),
+                        "Новый товар", categories.get(i % CATEGORIES), ShopUnitType.OFFER, 1L)));
+                outputStream.write('\n');
+            }
+            outputStream.flush();
+            awaitBulkChunks(port);
+        } finally {
+            process.destroyForcibly().waitFor();
+        }
+
+        process = start(port);
+        try {
+            assertEquals(tree, get(port, "/nodes/" + root));
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(new DriverManagerDataSource(
+                "jdbc:h2:file:" + dataDir.resolve("shop") + ";MODE=PostgreSQL;DATABASE_TO_LOWER=TRUE", "sa", ""));
+        Flyway.configure().dataSource(jdbcTemplate.getDataSource()).locations("classpath:db/h2").load().validate();
+        assertEquals(1 + CATEGORIES + OFFERS, jdbcTemplate.queryForObject("select count(*) from shop_unit",
+                Integer.class));
+        assertAggregates(jdbcTemplate);
+    }
+
+    /**
+     * Суммы цен и количество товаров категорий совпадают с пересчитанными по ссылкам на родителей
+     */
+    private static void assertAggregates(JdbcTemplate jdbcTemplate) {
+        Map<String, Map<String, Object>> rows = new HashMap<>();
+        jdbcTemplate.queryForList("select cast(id as varchar) as id, cast(parent_id as varchar) as parent_id, "
+                + "type, price, price_sum, offer_count from shop_unit")
+                .forEach(row -> rows.put((String) row.get("id"), row));
+        Map<String, long[]> expected = new HashMap<>();
+        rows.forEach((id, row) -> {
+            if (!"OFFER".equals(row.get("type"))) return;
+            for (String ancestor = (String) row.get("parent_id"); ancestor != null;
+                 ancestor = (String) rows.get(ancestor).get("parent_id")) {
+                long[] aggregate = expected.computeIfAbsent(ancestor, id1 -> new long[2]);
+                aggregate[0] += (Long) row.get("price");
+                aggregate[1]++;
+            }
+        });
+        rows.forEach((id, row) -> {
+            if (!"CATEGORY".equals(row.get("type"))) return;
+            long[] aggregate = expected.getOrDefault(id, new long[2]);
+            assertEquals(aggregate[0], row.get("price_sum"), "Сумма цен " + id);
+            assertEquals(aggregate[1], row.get("offer_count"), "Количество товаров " + id);
+        });
+    }
+
+    /**
+     * Запуск приложения отдельным процессом с профилем embedded и ожидание готовности
+     */
+    private Process start(int port) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-Xmx256m", "-cp", System.getProperty("java.class.path"),
+                Application.class.getName(),
+                "--spring.profiles.active=embedded",
+                "--embedded.data-dir=" + dataDir,
+                "--server.port=" + port,
+                "--warmup.enabled=false",
+                "--imports.bulk.chunk-size=100")
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(dataDir.resolve("application.log").toFile()))
+                .start();
+
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            if (!process.isAlive()) fail("Приложение остановилось при запуске, журнал: " + dataDir);
+            try {
+                if (status(port, "/actuator/health/readiness") == 200) return process;
+            } catch (ConnectException e) {
+                // Сервер еще не слушает порт
+            }
+            TimeUnit.MILLISECONDS.sleep(200);
+        }
+        process.destroyForcibly();
+        fail("Приложение не запустилось за " + START_TIMEOUT_MILLIS + " мс");
+        return process;
+    }
+
+    /**
+     * Ожидание записи нескольких порций потокового импорта по метрике фаз
+     */
+    private void awaitBulkChunks(int port) throws Exception {
+        URI uri = uri(port, "/actuator/metrics/megamarket.phase?tag=operation:bulk_import&tag=phase:chunk");
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder(uri).build(),
+                    HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            if (response.statusCode() == 200
+                    && objectMapper.readTree(response.body()).at("/measurements/0/value").asLong() >= BULK_CHUNKS) {
+                return;
+            }
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        fail("Потоковый импорт не записал " + BULK_CHUNKS + " порций");
+    }
+
+    private int status(int port, String path) throws IOException, InterruptedException {
+        return httpClient.send(HttpRequest.newBuilder(uri(port, path)).build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private String get(int port, String path) throws IOException, InterruptedException {
+        HttpResponse<String> response = httpClient.send(HttpRequest.newBuilder(uri(port, path)).build(),
+                HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        assertEquals(200, response.statusCode());
+        assertTrue(response.body().startsWith("{"));
+        return response.body();
+    }
+
+    private int post(int port, String path, String json) throws IOException, InterruptedException {
+        return httpClient.send(HttpRequest.newBuilder(uri(port, path))
+                        .header("Content-Type", "application/json")
+                        .POST(HttpRequest.BodyPublishers.ofString(json, StandardCharsets.UTF_8)).build(),
+                HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    private static URI uri(int port, String path) {
+        return URI.create("http://localhost:" + port + path);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ru.yandex.megamarket;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import ru.yandex.megamarket.services.CatalogCacheService;
+import ru.yandex.megamarket.services.CatalogEngine;
+
+/**
+ * Приложение целиком на встроенном PostgreSQL со схемой из миграций Flyway.
+ * Контекст общий для всех наследников, поэтому каждый тест начинает с пустого каталога
+ */
+@SpringBootTest
+@ActiveProfiles("test")
+public abstract class PostgresIntegrationTest {
+
+    @Autowired
+    protected JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    protected CatalogCacheService catalogCacheService;
+
+    @Autowired
+    protected CatalogEngine catalogEngine;
+
+    @DynamicPropertySource
+    static void datasource(DynamicPropertyRegistry registry) {
+        registry.add("spring.datasource.url", () -> TestPostgres.get().getJdbcUrl(TestPostgres.USER, "postgres"));
+        registry.add("spring.datasource.username", () -> TestPostgres.USER);
+        registry.add("spring.datasource.password", () -> TestPostgres.USER);
+    }
+
+    /**
+     * Удаление всех элементов, истории и задач импорта вместе с кэшем и каталогом в памяти
+     */
+    protected void clearCatalog() {
+        jdbcTemplate.update("delete from import_job");
+        jdbcTemplate.update("delete from shop_unit_statistic_unit");
+        jdbcTemplate.update("delete from shop_unit");
+        catalogCacheService.invalidateAll();
+        catalogEngine.reload();
+    }
+}
@@ -0,0 +1,55 @@
+package ru.yandex.megamarket;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Встроенный PostgreSQL, общий для всех тестов. Запускается при первом обращении и останавливается вместе с JVM
+ */
+public final class TestPostgres {
+
+    public static final String USER = "postgres";
+
+    private static EmbeddedPostgres postgres;
+
+    private TestPostgres() {
+    }
+
+    public static synchronized EmbeddedPostgres get() {
+        if (postgres == null) {
+            try {
+                postgres = EmbeddedPostgres.builder().start();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    postgres.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        return postgres;
+    }
+
+    /**
+     * Создание пустой базы, например, для проверки миграций
+     * @param name имя базы
+     * @return источник соединений с новой базой
+     */
+    public static DataSource createDatabase(String name) throws SQLException {
+        try (Connection connection = get().getPostgresDatabase().getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("drop database if exists " + name);
+            statement.execute("create database " + name);
+        }
+        return get().getDatabase(USER, name);
+    }
+}
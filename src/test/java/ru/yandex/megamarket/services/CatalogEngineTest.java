@@ -0,0 +1,139 @@
+package ru.yandex.megamarket.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import ru.yandex.megamarket.model.ShopUnit;
+import ru.yandex.megamarket.model.ShopUnitType;
+import ru.yandex.megamarket.repository.ShopUnitJdbcRepo;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Порядок детей и запись дат в ответе /nodes/{id} из каталога в памяти
+ */
+class CatalogEngineTest {
+
+    private static final UUID ROOT = UUID.fromString("00000000-0000-0000-0000-000000000001");
+    private static final OffsetDateTime DATE = OffsetDateTime.parse("2022-02-01T12:00:00Z");
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ShopUnitJdbcRepo shopUnitJdbcRepo = mock(ShopUnitJdbcRepo.class);
+    private final CatalogEngine catalogEngine = new CatalogEngine(shopUnitJdbcRepo, new SubtreeLockService(16),
+            objectMapper, new SimpleMeterRegistry(), true, 1000);
+
+    @Test
+    void childrenFollowIdOrderAsInDatabase() throws IOException {
+        // Старший бит id установлен: как long такой id отрицательный, а как строка идет последним
+        UUID first = UUID.fromString("10000000-0000-0000-0000-000000000000");
+        UUID second = UUID.fromString("7fffffff-ffff-ffff-0000-000000000000");
+        UUID third = UUID.fromString("80000000-0000-0000-0000-000000000000");
+        UUID fourth = UUID.fromString("f0000000-0000-0000-0000-000000000000");
+        load(category(ROOT, null), offer(third, ROOT, DATE), offer(first, ROOT, DATE));
+
+        catalogEngine.putAfterCommit(List.of(offer(fourth, ROOT, DATE), offer(second, ROOT, DATE)));
+        assertEquals(List.of(first, second, third, fourth), childIds(tree(ROOT)));
+
+        // Перенос в другую категорию и обратно возвращает элемент на его место
+        UUID other = UUID.fromString("00000000-0000-0000-0000-000000000002");
+        catalogEngine.putAfterCommit(List.of(category(other, null), offer(second, other, DATE)));
+        assertEquals(List.of(first, third, fourth), childIds(tree(ROOT)));
+        catalogEngine.putAfterCommit(List.of(offer(second, ROOT, DATE)));
+        assertEquals(List.of(first, second, third, fourth), childIds(tree(ROOT)));
+    }
+
+    @Test
+    void datesMatchParserFormat() throws IOException {
+        List<Long> millis = new ArrayList<>(List.of(
+                0L,
+                -1L,
+                // 29 февраля високосного года и 1 марта невисокосного 2100 года
+                Instant.parse("2000-02-29T23:59:59.999Z").toEpochMilli(),
+                Instant.parse("2100-03-01T00:00:00.000Z").toEpochMilli(),
+                Instant.parse("0001-01-01T00:00:00.000Z").toEpochMilli(),
+                Instant.parse("9999-12-31T23:59:59.999Z").toEpochMilli(),
+                // За пределами четырех цифр года дата пишется через форматтер
+                Instant.parse("+10000-01-01T00:00:00.000Z").toEpochMilli()));
+        Random random = new Random(42);
+        long from = Instant.parse("0001-01-01T00:00:00Z").toEpochMilli();
+        long to = Instant.parse("9999-12-31T23:59:59.999Z").toEpochMilli();
+        for (int i = 0; i < 10_000; i++) {
+            millis.add(from + (long) (random.nextDouble() * (to - from)));
+        }
+
+        load(category(ROOT, null));
+        for (long value : millis) {
+            OffsetDateTime date = OffsetDateTime.ofInstant(Instant.ofEpochMilli(value), ZoneOffset.UTC);
+            catalogEngine.putAfterCommit(List.of(category(ROOT, null, date)));
+            assertEquals(ParserService.DATE_FORMATTER.format(date), tree(ROOT).get("date").asText(),
+                    "Дата " + value);
+        }
+    }
+
+    /**
+     * Загрузка каталога из заданных элементов в заданном порядке
+     */
+    @SuppressWarnings("unchecked")
+    private void load(ShopUnit... shopUnits) {
+        doAnswer(invocation -> {
+            Consumer<ShopUnit> consumer = invocation.getArgument(0);
+            for (ShopUnit shopUnit : shopUnits) {
+                consumer.accept(shopUnit);
+            }
+            return null;
+        }).when(shopUnitJdbcRepo).findCatalog(any(Consumer.class));
+        catalogEngine.reload();
+    }
+
+    private JsonNode tree(UUID id) throws IOException {
+        return objectMapper.readTree(catalogEngine.writeSubtree(id));
+    }
+
+    private static List<UUID> childIds(JsonNode node) {
+        List<UUID> ids = new ArrayList<>();
+        node.get("children").forEach(child -> ids.add(UUID.fromString(child.get("id").asText())));
+        return ids;
+    }
+
+    private static ShopUnit category(UUID id, UUID parentId) {
+        return category(id, parentId, DATE);
+    }
+
+    private static ShopUnit category(UUID id, UUID parentId, OffsetDateTime date) {
+        return new ShopUnit.Builder()
+                .withId(id)
+                .withName("Категория")
+                .withDate(date)
+                .withParentId(parentId)
+                .withType(ShopUnitType.CATEGORY)
+                .build();
+    }
+
+    private static ShopUnit offer(UUID id, UUID parentId, OffsetDateTime date) {
+        ShopUnit offer = new ShopUnit.Builder()
+                .withId(id)
+                .withName("Товар")
+                .withDate(date)
+                .withParentId(parentId)
+                .withType(ShopUnitType.OFFER)
+                .withPrice(100L)
+                .build();
+        offer.setPriceSum(100);
+        offer.setOfferCount(1);
+        return offer;
+    }
+}
@@ -0,0 +1,47 @@
+package ru.yandex.megamarket.services;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import ru.yandex.megamarket.repository.SqlStatementCounter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+/**
+ * Замеры прогрева не попадают в опубликованные метрики операций
+ */
+class CatalogMetricsServiceTest {
+
+    private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final CatalogMetricsService catalogMetricsService =
+            new CatalogMetricsService(meterRegistry, new SqlStatementCounter());
+
+    @Test
+    void warmUpIsNotRecorded() {
+        catalogMetricsService.startWarmUp();
+        try {
+            record();
+        } finally {
+            catalogMetricsService.stopWarmUp();
+        }
+        assertNull(meterRegistry.find("megamarket.operation").timer());
+        assertNull(meterRegistry.find("megamarket.phase").timer());
+        assertNull(meterRegistry.find("megamarket.items").summary());
+        assertNull(meterRegistry.find("megamarket.sql.statements").summary());
+
+        record();
+        assertEquals(1, meterRegistry.get("megamarket.operation").timer().count());
+        assertEquals(1, meterRegistry.get("megamarket.phase").timer().count());
+        assertEquals(1, meterRegistry.get("megamarket.items").summary().count());
+    }
+
+    private void record() {
+        Timer.Sample operation = catalogMetricsService.startOperation();
+        Timer.Sample phase = catalogMetricsService.startPhase();
+        catalogMetricsService.stopPhase(phase, CatalogMetricsService.NODES, "engine");
+        catalogMetricsService.recordItems(CatalogMetricsService.NODES, 10);
+        catalogMetricsService.stopOperation(operation, CatalogMetricsService.NODES);
+    }
+}
@@ -0,0 +1,162 @@
+package ru.yandex.megamarket.services;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import ru.yandex.megamarket.PostgresIntegrationTest;
+import ru.yandex.megamarket.exception.ValidationFailedException;
+import ru.yandex.megamarket.model.ImportJob;
+import ru.yandex.megamarket.model.ImportJobStatus;
+import ru.yandex.megamarket.model.ShopUnitImport;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.model.ShopUnitType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Задачи одного updateDate, примененные объединенным импортом, дают тот же каталог и те же статусы,
+ * что и примененные по очереди
+ */
+class ImportJobServiceTest extends PostgresIntegrationTest {
+
+    private static final String UPDATE_DATE = "2022-02-02T12:00:00.000Z";
+    private static final long TIMEOUT_MILLIS = 30_000;
+
+    private static final String ROOT = id(1);
+    private static final String OFFER = id(2);
+    private static final String CATEGORY = id(3);
+    private static final String C20 = id(20);
+    private static final String C21 = id(21);
+
+    @Autowired
+    private ImportJobService importJobService;
+
+    @Autowired
+    private ShopUnitService shopUnitService;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    @Test
+    void jobWithParentFromLaterJobFailsAsWhenAppliedAlone() throws Exception {
+        assertCoalescedLikeOneByOne(List.of(
+                request(UPDATE_DATE, offer(id(10), CATEGORY, 200)),
+                request(UPDATE_DATE, category(CATEGORY, ROOT)),
+                request(UPDATE_DATE, offer(id(11), CATEGORY, 300)),
+                request(UPDATE_DATE, category(id(12), ROOT), offer(id(13), id(12), 50)),
+                request(UPDATE_DATE, offer(OFFER, id(12), 150))));
+    }
+
+    @Test
+    void jobsWithOfferParentsFailAsWhenAppliedAlone() throws Exception {
+        assertCoalescedLikeOneByOne(List.of(
+                request(UPDATE_DATE, category(CATEGORY, ROOT)),
+                // Родитель - товар из БД
+                request(UPDATE_DATE, offer(id(10), OFFER, 400)),
+                request(UPDATE_DATE, category(id(11), ROOT), offer(id(12), id(11), 50)),
+                // Родитель - товар из предыдущей задачи
+                request(UPDATE_DATE, offer(id(13), id(12), 60)),
+                request(UPDATE_DATE, offer(OFFER, CATEGORY, 150)),
+                request(UPDATE_DATE, category(id(14), CATEGORY)),
+                request(UPDATE_DATE, offer(id(15), id(14), 70), offer(id(16), id(14), 80))));
+    }
+
+    @Test
+    void jobWithCycleHiddenByLaterJobFailsAsWhenAppliedAlone() throws Exception {
+        assertCoalescedLikeOneByOne(List.of(
+                request(UPDATE_DATE, offer(id(10), ROOT, 200)),
+                request(UPDATE_DATE, offer(id(11), C21, 300)),
+                // Одна задача переносит C20 в ее же дочернюю C21, следующая выносит C21 в корень
+                request(UPDATE_DATE, category(C20, C21)),
+                request(UPDATE_DATE, category(C21, ROOT)),
+                request(UPDATE_DATE, offer(id(12), C20, 50))));
+    }
+
+    /**
+     * Применение задач по очереди синхронным импортом и через очередь, где они объединяются
+     * @param requests задачи в порядке поступления
+     */
+    private void assertCoalescedLikeOneByOne(List<ShopUnitImportRequest> requests) throws Exception {
+        clearCatalog();
+        shopUnitService.importShopUnitItems(catalog());
+        List<ImportJobStatus> expectedStatuses = new ArrayList<>();
+        for (ShopUnitImportRequest request : requests) {
+            try {
+                shopUnitService.importShopUnitItems(request);
+                expectedStatuses.add(ImportJobStatus.DONE);
+            } catch (ValidationFailedException e) {
+                expectedStatuses.add(ImportJobStatus.FAILED);
+            }
+        }
+        String expectedTree = tree(ROOT);
+
+        clearCatalog();
+        shopUnitService.importShopUnitItems(catalog());
+        DistributionSummary coalesced = meterRegistry.get("megamarket.import.jobs.coalesced").summary();
+        long groupsBefore = coalesced.count();
+        List<ImportJob> jobs = requests.stream().map(importJobService::submit).collect(Collectors.toList());
+
+        assertEquals(expectedStatuses, awaitStatuses(jobs));
+        assertEquals(expectedTree, tree(ROOT));
+        assertTrue(coalesced.count() - groupsBefore < jobs.size(), "Задачи не были объединены");
+    }
+
+    /**
+     * Категория с одним товаром и цепочкой вложенных категорий, к которым обращаются задачи
+     */
+    private static ShopUnitImportRequest catalog() {
+        return request("2022-02-01T12:00:00.000Z",
+                category(ROOT, null),
+                offer(OFFER, ROOT, 100),
+                category(C20, ROOT),
+                category(C21, C20));
+    }
+
+    private List<ImportJobStatus> awaitStatuses(List<ImportJob> jobs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        List<ImportJobStatus> statuses = new ArrayList<>();
+        for (ImportJob job : jobs) {
+            ImportJobStatus status = importJobService.getJob(job.getId().toString()).getStatus();
+            while (status == ImportJobStatus.QUEUED || status == ImportJobStatus.RUNNING) {
+                if (System.currentTimeMillis() > deadline) fail("Задача " + job.getId() + " не применена");
+                Thread.sleep(50);
+                status = importJobService.getJob(job.getId().toString()).getStatus();
+            }
+            statuses.add(status);
+        }
+        return statuses;
+    }
+
+    private String tree(String id) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        shopUnitService.writeShopUnitTree(id, outputStream);
+        return outputStream.toString(StandardCharsets.UTF_8);
+    }
+
+    private static ShopUnitImportRequest request(String updateDate, ShopUnitImport... items) {
+        return new ShopUnitImportRequest(new ArrayList<>(Arrays.asList(items)), updateDate);
+    }
+
+    private static ShopUnitImport category(String id, String parentId) {
+        return new ShopUnitImport(id, "Категория " + id, parentId, ShopUnitType.CATEGORY, null);
+    }
+
+    private static ShopUnitImport offer(String id, String parentId, long price) {
+        return new ShopUnitImport(id, "Товар " + id, parentId, ShopUnitType.OFFER, price);
+    }
+
+    private static String id(int number) {
+        return String.format("00000000-0000-0000-0000-%012d", number);
+    }
+}
@@ -0,0 +1,185 @@
+package ru.yandex.megamarket.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import ru.yandex.megamarket.PostgresIntegrationTest;
+import ru.yandex.megamarket.exception.ItemNotFoundException;
+import ru.yandex.megamarket.exception.ValidationFailedException;
+import ru.yandex.megamarket.model.ShopUnitImport;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.model.ShopUnitType;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Параллельные импорты, переносы и удаления не нарушают суммы цен и количество товаров категорий
+ */
+class ShopUnitConcurrencyTest extends PostgresIntegrationTest {
+
+    private static final int ROOTS = 3;
+    private static final int CATEGORIES_PER_ROOT = 5;
+    private static final int OFFERS = 60;
+    private static final int THREADS = 8;
+    private static final int OPERATIONS_PER_THREAD = 150;
+    private static final String UPDATE_DATE = "2022-02-01T12:00:00.000Z";
+
+    @Autowired
+    private ShopUnitService shopUnitService;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private final List<String> roots = new ArrayList<>();
+    private final List<String> categories = new ArrayList<>();
+    private final List<String> offers = new ArrayList<>();
+
+    @Test
+    void aggregatesMatchSubtreesAfterConcurrentChanges() throws Exception {
+        clearCatalog();
+        createCatalog();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                Random random = new Random(i);
+                futures.add(executor.submit(() -> {
+                    for (int operation = 0; operation < OPERATIONS_PER_THREAD; operation++) {
+                        change(random);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertAggregates();
+        // Каталог в памяти, измененный по ходу, совпадает с заново загруженным из БД
+        Map<String, JsonNode> trees = trees();
+        catalogCacheService.invalidateAll();
+        catalogEngine.reload();
+        assertEquals(trees, trees());
+    }
+
+    private void createCatalog() {
+        List<ShopUnitImport> items = new ArrayList<>();
+        for (int i = 0; i < ROOTS; i++) {
+            String root = UUID.randomUUID().toString();
+            roots.add(root);
+            items.add(new ShopUnitImport(root, "Корень", null, ShopUnitType.CATEGORY, null));
+            String parent = root;
+            for (int j = 0; j < CATEGORIES_PER_ROOT; j++) {
+                String category = UUID.randomUUID().toString();
+                categories.add(category);
+                items.add(new ShopUnitImport(category, "Категория", j % 2 == 0 ? root : parent,
+                        ShopUnitType.CATEGORY, null));
+                parent = category;
+            }
+        }
+        Random random = new Random(OFFERS);
+        for (int i = 0; i < OFFERS; i++) {
+            String offer = UUID.randomUUID().toString();
+            offers.add(offer);
+            items.add(offer(offer, random));
+        }
+        shopUnitService.importShopUnitItems(new ShopUnitImportRequest(items, UPDATE_DATE));
+    }
+
+    /**
+     * Случайное изменение: новая цена и родитель товаров, перенос категории или удаление товара.
+     * Отказы из-за циклов и уже удаленных товаров ожидаемы
+     */
+    private void change(Random random) {
+        int kind = random.nextInt(10);
+        try {
+            if (kind < 4) {
+                List<ShopUnitImport> items = new ArrayList<>();
+                for (int i = 1 + random.nextInt(3); i > 0; i--) {
+                    items.add(offer(offers.get(random.nextInt(OFFERS)), random));
+                }
+                shopUnitService.importShopUnitItems(new ShopUnitImportRequest(items, UPDATE_DATE));
+            } else if (kind < 9) {
+                String category = categories.get(random.nextInt(categories.size()));
+                String parent = random.nextInt(5) == 0 ? roots.get(random.nextInt(ROOTS))
+                        : categories.get(random.nextInt(categories.size()));
+                shopUnitService.importShopUnitItems(new ShopUnitImportRequest(new ArrayList<>(List.of(
+                        new ShopUnitImport(category, "Категория", parent, ShopUnitType.CATEGORY, null))),
+                        UPDATE_DATE));
+            } else {
+                shopUnitService.deleteShopUnitById(offers.get(random.nextInt(OFFERS)));
+            }
+        } catch (ValidationFailedException | ItemNotFoundException e) {
+            // Перенос категории в свое поддерево или удаление уже удаленного товара
+        }
+    }
+
+    private ShopUnitImport offer(String id, Random random) {
+        String parent = random.nextInt(4) == 0 ? roots.get(random.nextInt(ROOTS))
+                : categories.get(random.nextInt(categories.size()));
+        return new ShopUnitImport(id, "Товар", parent, ShopUnitType.OFFER, (long) random.nextInt(1000));
+    }
+
+    /**
+     * Сравнение сумм цен, количества товаров, средних цен и путей с пересчитанными по ссылкам на родителей
+     */
+    private void assertAggregates() {
+        Map<String, Map<String, Object>> rows = new HashMap<>();
+        jdbcTemplate.queryForList("select cast(id as varchar) as id, cast(parent_id as varchar) as parent_id, "
+                + "type, price, price_sum, offer_count, path from shop_unit")
+                .forEach(row -> rows.put((String) row.get("id"), row));
+        Map<String, long[]> expected = new HashMap<>();
+        rows.forEach((id, row) -> {
+            if ("CATEGORY".equals(row.get("type"))) expected.put(id, new long[2]);
+        });
+        rows.forEach((id, row) -> {
+            if (!"OFFER".equals(row.get("type"))) return;
+            for (String ancestor = (String) row.get("parent_id"); ancestor != null;
+                 ancestor = (String) rows.get(ancestor).get("parent_id")) {
+                expected.get(ancestor)[0] += (Long) row.get("price");
+                expected.get(ancestor)[1]++;
+            }
+        });
+
+        rows.forEach((id, row) -> {
+            String parentId = (String) row.get("parent_id");
+            String path = (parentId == null ? "" : (String) rows.get(parentId).get("path")) + id + "/";
+            assertEquals(path, row.get("path"), "Путь " + id);
+            if (!"CATEGORY".equals(row.get("type"))) return;
+            long[] aggregate = expected.get(id);
+            assertEquals(aggregate[0], row.get("price_sum"), "Сумма цен " + id);
+            assertEquals(aggregate[1], row.get("offer_count"), "Количество товаров " + id);
+            assertEquals(aggregate[1] == 0 ? null : aggregate[0] / aggregate[1], row.get("price"), "Цена " + id);
+        });
+    }
+
+    /**
+     * Деревья корней. Дети идут по возрастанию id и после изменений, и после загрузки каталога
+     */
+    private Map<String, JsonNode> trees() throws IOException {
+        Map<String, JsonNode> trees = new HashMap<>();
+        for (String root : roots) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            shopUnitService.writeShopUnitTree(root, outputStream);
+            trees.put(root, objectMapper.readTree(outputStream.toByteArray()));
+        }
+        return trees;
+    }
+}
@@ -0,0 +1,136 @@
+package ru.yandex.megamarket.services;
+
+import org.junit.jupiter.api.Test;
+import ru.yandex.megamarket.error.ItemError;
+import ru.yandex.megamarket.exception.ValidationFailedException;
+import ru.yandex.megamarket.model.ShopUnitImport;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.model.ShopUnitType;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Ошибки запроса на импорт собираются по всем элементам с позицией и id каждого элемента.
+ * Ошибки в дате обновления возвращаются как ошибки запроса, а не как исключения разбора
+ */
+class ShopUnitImportValidatorTest {
+
+    private static final String UPDATE_DATE = "2022-02-01T12:00:00.000Z";
+    private static final String CATEGORY = "00000000-0000-0000-0000-000000000001";
+    private static final String OFFER = "00000000-0000-0000-0000-000000000002";
+    private static final String CHILD = "00000000-0000-0000-0000-000000000003";
+
+    private final ShopUnitImportValidator shopUnitImportValidator = new ShopUnitImportValidator(new ParserService());
+
+    @Test
+    void duplicateIdIsReportedForRepeatedItem() {
+        List<ItemError> errors = validate(
+                category(CATEGORY, null),
+                offer(OFFER, CATEGORY),
+                category(CATEGORY, null));
+
+        assertErrors(errors, new ItemError(2, CATEGORY, "В одном запросе не может быть двух элементов с одинаковым id"));
+    }
+
+    @Test
+    void cycleInRequestIsReportedForEveryCategoryInCycle() {
+        List<ItemError> errors = validate(
+                category(CATEGORY, CHILD),
+                offer(OFFER, CATEGORY),
+                category(CHILD, CATEGORY));
+
+        assertErrors(errors,
+                new ItemError(0, CATEGORY, "Категории не могут образовывать цикл"),
+                new ItemError(2, CHILD, "Категории не могут образовывать цикл"));
+    }
+
+    @Test
+    void offerFromRequestCannotBeParent() {
+        List<ItemError> errors = validate(
+                offer(OFFER, null),
+                offer(CHILD, OFFER));
+
+        assertErrors(errors, new ItemError(1, CHILD, "ParentId должен ссылаться на категорию, а не товар"));
+    }
+
+    @Test
+    void errorsOfAllItemsKeepTheirPositionAndId() {
+        String malformedId = "not-a-uuid";
+        List<ItemError> errors = validate(
+                category(CATEGORY, null),
+                new ShopUnitImport(malformedId, "Товар", CATEGORY, ShopUnitType.OFFER, 100L),
+                new ShopUnitImport(OFFER, " ", CATEGORY, ShopUnitType.OFFER, -1L));
+
+        assertErrors(errors,
+                new ItemError(1, malformedId, "Поле id должно содержать UUID"),
+                new ItemError(2, OFFER, "Поле name не должно быть пустым"),
+                new ItemError(2, OFFER, "Цена товара должна быть больше либо равна нулю"));
+    }
+
+    @Test
+    void streamChunkErrorsUsePositionInStream() {
+        ValidationFailedException e = assertThrows(ValidationFailedException.class,
+                () -> shopUnitImportValidator.validate(List.of(offer(OFFER, null), offer(CHILD, OFFER)),
+                        OffsetDateTime.parse(UPDATE_DATE), 1000));
+
+        assertErrors(e.getErrors(), new ItemError(1001, CHILD, "ParentId должен ссылаться на категорию, а не товар"));
+    }
+
+    @Test
+    void missingUpdateDateIsItemError() {
+        assertUpdateDateError(null, "Поле updateDate обязательно");
+    }
+
+    @Test
+    void malformedUpdateDateIsItemError() {
+        assertUpdateDateError("2022-13-45", "Дата обновления не соответствует формату");
+    }
+
+    private void assertUpdateDateError(String updateDate, String message) {
+        // Как после разбора JSON без поля updateDate: конструктор с полями не принимает null
+        ShopUnitImportRequest request = new ShopUnitImportRequest();
+        request.setItems(new ArrayList<>(List.of(new ShopUnitImport(
+                "3fa85f64-5717-4562-b3fc-2c963f66a333", "Товар", null, ShopUnitType.OFFER, 100L))));
+        if (updateDate != null) request.setUpdateDate(updateDate);
+        ValidationFailedException e = assertThrows(ValidationFailedException.class,
+                () -> shopUnitImportValidator.validate(request));
+
+        assertEquals(1, e.getErrors().size());
+        ItemError error = e.getErrors().get(0);
+        assertEquals(message, error.getMessage());
+    }
+
+    private List<ItemError> validate(ShopUnitImport... items) {
+        ShopUnitImportRequest request = new ShopUnitImportRequest(new ArrayList<>(List.of(items)), UPDATE_DATE);
+        return assertThrows(ValidationFailedException.class, () -> shopUnitImportValidator.validate(request))
+                .getErrors();
+    }
+
+    /**
+     * Сравнение ошибок по порядку позиций: ошибки цикла идут в порядке обхода, а не запроса
+     */
+    private static void assertErrors(List<ItemError> actual, ItemError... expected) {
+        List<ItemError> errors = new ArrayList<>(actual);
+        errors.sort(Comparator.comparing(ItemError::getIndex));
+        assertEquals(expected.length, errors.size(), "Количество ошибок");
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getIndex(), errors.get(i).getIndex(), "Позиция ошибки " + i);
+            assertEquals(expected[i].getId(), errors.get(i).getId(), "id ошибки " + i);
+            assertEquals(expected[i].getMessage(), errors.get(i).getMessage(), "Текст ошибки " + i);
+        }
+    }
+
+    private static ShopUnitImport category(String id, String parentId) {
+        return new ShopUnitImport(id, "Категория", parentId, ShopUnitType.CATEGORY, null);
+    }
+
+    private static ShopUnitImport offer(String id, String parentId) {
+        return new ShopUnitImport(id, "Товар", parentId, ShopUnitType.OFFER, 100L);
+    }
+}
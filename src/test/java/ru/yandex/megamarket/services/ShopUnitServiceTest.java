@@ -0,0 +1,167 @@
+package ru.yandex.megamarket.services;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.springframework.beans.factory.annotation.Autowired;
+import ru.yandex.megamarket.PostgresIntegrationTest;
+import ru.yandex.megamarket.exception.ValidationFailedException;
+import ru.yandex.megamarket.model.ShopUnit;
+import ru.yandex.megamarket.model.ShopUnitImport;
+import ru.yandex.megamarket.model.ShopUnitImportRequest;
+import ru.yandex.megamarket.model.ShopUnitType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Суммы цен и пути категорий после импорта, который переставляет категории местами,
+ * ответы /nodes/{id} после импорта, который не меняет самих категорий, и предел глубины вложенности
+ */
+class ShopUnitServiceTest extends PostgresIntegrationTest {
+
+    private static final String ROOT = id(1);
+    private static final String C20 = id(20);
+    private static final String C21 = id(21);
+    private static final String OFFER_IN_C20 = id(30);
+    private static final String OFFER_IN_C21 = id(31);
+
+    @Autowired
+    private ShopUnitService shopUnitService;
+
+    @Test
+    void swapsParentAndChildCategoriesInOneImport() throws IOException {
+        clearCatalog();
+        shopUnitService.importShopUnitItems(request("2022-02-01T12:00:00.000Z",
+                category(ROOT, null),
+                category(C20, ROOT),
+                category(C21, C20),
+                offer(OFFER_IN_C20, C20, 100),
+                offer(OFFER_IN_C21, C21, 300)));
+
+        // Перенос C20 идет раньше переноса C21, у которого в этот момент еще прежний родитель C20
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> shopUnitService.importShopUnitItems(
+                request("2022-02-02T12:00:00.000Z", category(C20, C21), category(C21, ROOT))));
+
+        assertCategory(ROOT, 400, 2, ROOT + "/");
+        assertCategory(C21, 400, 2, ROOT + "/" + C21 + "/");
+        assertCategory(C20, 100, 1, ROOT + "/" + C21 + "/" + C20 + "/");
+
+        // Каталог в памяти, измененный импортом, совпадает с заново загруженным из БД
+        String tree = tree(ROOT);
+        catalogCacheService.invalidateAll();
+        catalogEngine.reload();
+        assertEquals(tree, tree(ROOT));
+    }
+
+    @Test
+    void unchangedCategoriesLeaveCacheWhenChildChanges() throws IOException {
+        clearCatalog();
+        String date = "2022-02-01T12:00:00.000Z";
+        shopUnitService.importShopUnitItems(request(date,
+                category(ROOT, null),
+                category(C20, ROOT),
+                category(C21, ROOT),
+                offer(OFFER_IN_C20, C20, 100)));
+        String before = tree(ROOT);
+
+        // Та же дата: у категорий не меняются ни дата, ни цена, поэтому сами они не пишутся в БД
+        shopUnitService.importShopUnitItems(request(date,
+                new ShopUnitImport(OFFER_IN_C20, "Новое имя", C20, ShopUnitType.OFFER, 100L)));
+        String renamed = tree(ROOT);
+        assertNotEquals(before, renamed);
+        assertTrue(renamed.contains("Новое имя"));
+
+        shopUnitService.importShopUnitItems(request(date,
+                new ShopUnitImport(OFFER_IN_C20, "Новое имя", C21, ShopUnitType.OFFER, 100L)));
+        String moved = tree(ROOT);
+        assertNotEquals(renamed, moved);
+        assertTrue(tree(C20).contains("\"children\":[]"));
+        assertTrue(tree(C21).contains(OFFER_IN_C20));
+
+        // Ответ из кэша совпадает с заново собранным по БД
+        catalogCacheService.invalidateAll();
+        catalogEngine.reload();
+        assertEquals(moved, tree(ROOT));
+    }
+
+    @Test
+    void rejectsItemsDeeperThanMaxDepth() {
+        clearCatalog();
+        List<ShopUnitImport> chain = new ArrayList<>();
+        for (int depth = 1; depth <= ShopUnit.MAX_DEPTH; depth++) {
+            chain.add(category(id(100 + depth), depth == 1 ? null : id(99 + depth)));
+        }
+        String deepest = id(100 + ShopUnit.MAX_DEPTH);
+        shopUnitService.importShopUnitItems(new ShopUnitImportRequest(chain, "2022-02-01T12:00:00.000Z"));
+        shopUnitService.importShopUnitItems(request("2022-02-01T12:00:00.000Z",
+                category(C20, null),
+                category(C21, C20)));
+
+        assertDepthRejected(() -> shopUnitService.importShopUnitItems(
+                request("2022-02-02T12:00:00.000Z", offer(OFFER_IN_C20, deepest, 100))));
+        assertDepthRejected(() -> shopUnitService.importShopUnitStream(new ByteArrayInputStream(
+                ("{\"id\":\"" + OFFER_IN_C20 + "\",\"name\":\"Товар\",\"parentId\":\"" + deepest
+                        + "\",\"type\":\"OFFER\",\"price\":100}").getBytes(StandardCharsets.UTF_8)),
+                "2022-02-02T12:00:00.000Z"));
+
+        // Перенос категории проверяет глубину ее потомков из БД
+        String parent = id(100 + ShopUnit.MAX_DEPTH - 1);
+        assertDepthRejected(() -> shopUnitService.importShopUnitItems(
+                request("2022-02-02T12:00:00.000Z", category(C20, parent))));
+        shopUnitService.importShopUnitItems(request("2022-02-02T12:00:00.000Z",
+                category(C20, id(100 + ShopUnit.MAX_DEPTH - 2))));
+        assertEquals(ShopUnit.MAX_PATH_LENGTH, jdbcTemplate.queryForObject(
+                "select length(path) from shop_unit where id = cast(? as uuid)", Integer.class, C21));
+    }
+
+    private void assertDepthRejected(Executable executable) {
+        ValidationFailedException exception = assertThrows(ValidationFailedException.class, executable);
+        assertEquals(1, exception.getErrors().size());
+        assertTrue(exception.getErrors().get(0).getMessage().startsWith("Глубина вложенности"));
+        assertEquals(0, jdbcTemplate.queryForObject(
+                "select count(*) from shop_unit where length(path) > ?", Integer.class, ShopUnit.MAX_PATH_LENGTH));
+    }
+
+    private String tree(String id) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        shopUnitService.writeShopUnitTree(id, outputStream);
+        return outputStream.toString(StandardCharsets.UTF_8);
+    }
+
+    private void assertCategory(String id, long priceSum, long offerCount, String path) {
+        Map<String, Object> row = jdbcTemplate.queryForMap(
+                "select price_sum, offer_count, price, path from shop_unit where id = cast(? as uuid)", id);
+        assertEquals(priceSum, row.get("price_sum"), "Сумма цен " + id);
+        assertEquals(offerCount, row.get("offer_count"), "Количество товаров " + id);
+        assertEquals(priceSum / offerCount, row.get("price"), "Цена " + id);
+        assertEquals(path, row.get("path"), "Путь " + id);
+    }
+
+    private static ShopUnitImportRequest request(String updateDate, ShopUnitImport... items) {
+        return new ShopUnitImportRequest(new ArrayList<>(List.of(items)), updateDate);
+    }
+
+    private static ShopUnitImport category(String id, String parentId) {
+        return new ShopUnitImport(id, "Категория " + id, parentId, ShopUnitType.CATEGORY, null);
+    }
+
+    private static ShopUnitImport offer(String id, String parentId, long price) {
+        return new ShopUnitImport(id, "Товар " + id, parentId, ShopUnitType.OFFER, price);
+    }
+
+    private static String id(int number) {
+        return String.format("00000000-0000-0000-0000-%012d", number);
+    }
+}
@@ -0,0 +1,64 @@
+package ru.yandex.megamarket.services;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Удаление со сдвигом хвоста цепочки не теряет элементы, которые стояли за удаленным
+ */
+class UuidSlotMapTest {
+
+    @Test
+    void removeKeepsRestOfChainReachable() {
+        // Таблица заполнена наполовину и не растет, поэтому у элементов есть общие цепочки
+        UuidSlotMap map = new UuidSlotMap(32);
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            UUID id = new UUID(0, i);
+            ids.add(id);
+            map.put(id, i);
+        }
+        for (int i = 0; i < ids.size(); i += 2) {
+            map.remove(ids.get(i));
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i % 2 == 0 ? -1 : i, map.get(ids.get(i)), "Элемент " + i);
+        }
+        assertEquals(16, map.size());
+    }
+
+    @Test
+    void matchesHashMapUnderRandomChanges() {
+        Random random = new Random(7);
+        UuidSlotMap map = new UuidSlotMap(4);
+        Map<UUID, Integer> expected = new HashMap<>();
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            ids.add(new UUID(random.nextLong(), random.nextLong()));
+        }
+
+        for (int operation = 0; operation < 100_000; operation++) {
+            UUID id = ids.get(random.nextInt(ids.size()));
+            if (random.nextInt(3) == 0) {
+                map.remove(id);
+                expected.remove(id);
+            } else {
+                map.put(id, operation);
+                expected.put(id, operation);
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (UUID id : ids) {
+            assertEquals(expected.getOrDefault(id, -1), map.get(id), "Элемент " + id);
+        }
+    }
+}